@@ -0,0 +1,80 @@
+package benchmarks;
+
+import pacman.game.Game;
+import prediction.GhostLocation;
+import prediction.fast.GhostPredictionsFast;
+import prediction.fast.IndividualLocationsFast;
+
+import java.util.EnumMap;
+import java.util.Random;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * The game states the benchmarks run on. Each is a game on one of the four mazes, played for a fixed number
+ * of ticks by a Ms. Pac-Man and ghosts that pick moves at random from a fixed seed, so every run (and every
+ * machine) benchmarks exactly the same positions.
+ */
+public final class CapturedStates {
+    public static final int TICKS = 300;
+    public static final int BELIEF_UPDATES = 20; //Ticks the ghosts go unseen, so the beliefs are spread out
+    private static final long SEED = 7;
+
+    private CapturedStates() {
+    }
+
+    public static Game capture(int maze) {
+        Game game = new Game(SEED + maze, maze, null);
+        Random random = new Random(SEED + maze);
+        EnumMap<GHOST, MOVE> ghostMoves = new EnumMap<>(GHOST.class);
+        for (int tick = 0; tick < TICKS && !game.gameOver(); tick++) {
+            for (GHOST ghost : GHOST.values()) {
+                if (game.doesGhostRequireAction(ghost)) {
+                    int index = game.getGhostCurrentNodeIndex(ghost);
+                    ghostMoves.put(ghost, randomMove(game.getPossibleMoves(index, game.getGhostLastMoveMade(ghost)), random));
+                } else {
+                    ghostMoves.put(ghost, MOVE.NEUTRAL);
+                }
+            }
+            int index = game.getPacmanCurrentNodeIndex();
+            game.advanceGame(randomMove(game.getPossibleMoves(index, game.getPacmanLastMoveMade()), random), ghostMoves);
+        }
+        return game;
+    }
+
+    //Every ghost seen where it is in the game, then lost from sight for a while
+    public static GhostPredictionsFast predictions(Game game) {
+        GhostPredictionsFast predictions = new GhostPredictionsFast(game.getCurrentMaze());
+        predictions.preallocate();
+        for (GHOST ghost : GHOST.values()) {
+            predictions.observe(ghost, game.getGhostCurrentNodeIndex(ghost), game.getGhostLastMoveMade(ghost));
+        }
+        for (int i = 0; i < BELIEF_UPDATES; i++) {
+            predictions.update();
+        }
+        return predictions;
+    }
+
+    public static IndividualLocationsFast locations(Game game, GHOST ghost) {
+        IndividualLocationsFast locations = new IndividualLocationsFast(game.getCurrentMaze());
+        locations.observe(game.getGhostCurrentNodeIndex(ghost), game.getGhostLastMoveMade(ghost));
+        for (int i = 0; i < BELIEF_UPDATES; i++) {
+            locations.update();
+        }
+        return locations;
+    }
+
+    //The node the ghost most probably is on
+    public static int mostLikely(GhostPredictionsFast predictions, GHOST ghost) {
+        GhostLocation best = null;
+        for (GhostLocation location : predictions.getGhostLocations(ghost)) {
+            if (best == null || location.getProbability() > best.getProbability()) best = location;
+        }
+        return best == null ? 0 : best.getIndex();
+    }
+
+    private static MOVE randomMove(MOVE[] moves, Random random) {
+        return (moves == null || moves.length == 0) ? MOVE.NEUTRAL : moves[random.nextInt(moves.length)];
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import prediction.GhostLocation;
+import prediction.fast.GhostPredictionsFast;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+import static pacman.game.Constants.GHOST;
+
+/**
+ * The ghost beliefs both MCTS controllers update every tick and sample every iteration.
+ * Every invocation starts again from the same captured beliefs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhostPredictionsBenchmark {
+    @Param({"0", "1", "2", "3"})
+    public int maze;
+
+    private GhostPredictionsFast captured;
+    private GhostPredictionsFast predictions;
+    private int hidden; //Where PM looks and doesn't see BLINKY
+
+    @Setup(Level.Trial)
+    public void capture() {
+        captured = CapturedStates.predictions(CapturedStates.capture(maze));
+        hidden = CapturedStates.mostLikely(captured, GHOST.BLINKY);
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        predictions = captured.copy();
+    }
+
+    @Benchmark
+    public GhostPredictionsFast update() {
+        predictions.update();
+        return predictions;
+    }
+
+    @Benchmark
+    public GhostPredictionsFast observeNotPresent() {
+        predictions.observeNotPresent(GHOST.BLINKY, hidden);
+        return predictions;
+    }
+
+    @Benchmark
+    public EnumMap<GHOST, GhostLocation> sampleLocations() {
+        return predictions.sampleLocations();
+    }
+}
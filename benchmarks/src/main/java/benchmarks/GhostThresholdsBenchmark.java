@@ -0,0 +1,83 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import prediction.fast.GhostPredictionsFast;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GhostPredictionsFast's update over its two thresholds: how much of the maze a belief covers before it is
+ * scanned in full rather than through its list of nodes, and how many nodes it needs before a pool updates it.
+ * Each invocation is a run of updates from the captured beliefs, so the beliefs spread from sparse to dense
+ * as they do while the ghosts are out of sight.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhostThresholdsBenchmark {
+    private static final int UPDATES = 20;
+
+    @Param({"0", "1", "2", "3"})
+    public int maze;
+
+    @Param({"2", "4", "8", "16"})
+    public int denseFraction;
+
+    @Param({"16", "64", "256"})
+    public int parallelMin;
+
+    private GhostPredictionsFast captured;
+    private GhostPredictionsFast predictions;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void capture() {
+        captured = CapturedStates.predictions(CapturedStates.capture(maze))
+                .setDenseFraction(denseFraction)
+                .setParallelMin(parallelMin);
+        pool = Executors.newFixedThreadPool(3); //As MyPacMan has with four workers, the calling thread being one of them
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        pool.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        predictions = captured.copy();
+    }
+
+    @Benchmark
+    public GhostPredictionsFast update() {
+        for (int i = 0; i < UPDATES; i++) {
+            predictions.update();
+        }
+        return predictions;
+    }
+
+    @Benchmark
+    public GhostPredictionsFast updateOnPool() {
+        for (int i = 0; i < UPDATES; i++) {
+            predictions.update(pool);
+        }
+        return predictions;
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import prediction.fast.IndividualLocationsFast;
+
+import java.util.concurrent.TimeUnit;
+
+import static pacman.game.Constants.GHOST;
+
+/**
+ * The single ghost belief the ghost team keeps about each of its members.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndividualLocationsBenchmark {
+    @Param({"0", "1", "2", "3"})
+    public int maze;
+
+    private IndividualLocationsFast captured;
+    private IndividualLocationsFast locations;
+
+    @Setup(Level.Trial)
+    public void capture() {
+        captured = CapturedStates.locations(CapturedStates.capture(maze), GHOST.BLINKY);
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        locations = captured.copy();
+    }
+
+    @Benchmark
+    public IndividualLocationsFast update() {
+        locations.update();
+        return locations;
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import examples.StarterNNPacMan.NeuralNet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One forward pass of the network NNPacMan plays with (12 inputs, 4 outputs, two hidden layers of 20).
+ * The work doesn't depend on the values going in, so unlike the other benchmarks it doesn't need a
+ * state per maze: weights and inputs come from a fixed seed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeuralNetBenchmark {
+    private NeuralNet net;
+    private ArrayList<Double> inputs;
+
+    @Setup
+    public void createNet() {
+        Random random = new Random(7);
+        net = new NeuralNet(12, 4, 4, 20);
+        net.createNet();
+        ArrayList<Double> weights = net.getWeights();
+        for (int i = 0; i < weights.size(); i++) {
+            weights.set(i, random.nextDouble() * 2 - 1);
+        }
+        net.setWeights(weights);
+        inputs = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            inputs.add((double) random.nextInt(4));
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Double> getOutputs() {
+        return net.getOutputs(inputs);
+    }
+}
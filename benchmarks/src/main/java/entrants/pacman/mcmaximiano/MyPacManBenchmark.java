@@ -0,0 +1,93 @@
+package entrants.pacman.mcmaximiano;
+
+import benchmarks.CapturedStates;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pacman.game.Constants.MOVE;
+import pacman.game.Game;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyPacMan's search. In the controller's package, so that the pieces of a single iteration can be timed
+ * on their own. The search runs on one thread, to compare like with like across machines;
+ * ParallelSearchBenchmark compares numbers of workers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MyPacManBenchmark {
+    private static final long BUDGET = 40; //Milliseconds per decision
+
+    @Param({"0", "1", "2", "3"})
+    public int maze;
+
+    private Game game;
+    private MyPacMan pacman;
+    private GameFast determinisation;
+    private GameFast copy;
+    private SearchTree tree;
+    private SearchContext context;
+
+    //Iterations per second of the whole search, next to the decisions per second JMH measures
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Iterations {
+        public long iterations;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            iterations = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void capture() {
+        game = CapturedStates.capture(maze);
+        pacman = new MyPacMan().setWorkers(1).setReuseTree(false);
+        pacman.getMove(game, System.currentTimeMillis() + BUDGET); //Builds the beliefs and the base state
+        determinisation = new GameFast(game.getCurrentMaze());
+        pacman.obtainDeterminisedState(game, determinisation);
+        copy = new GameFast(game.getCurrentMaze());
+        context = new SearchContext();
+        context.prepare(game.getCurrentMaze(), 0);
+        tree = new SearchTree(pacman, 1 << 10, null, false);
+        tree.reset(game);
+    }
+
+    @Benchmark
+    public GameFast obtainDeterminisedState() {
+        pacman.obtainDeterminisedState(game, copy);
+        return copy;
+    }
+
+    //From the root, on the same determinisation every time
+    @Benchmark
+    public double playout() {
+        copy.resetFrom(determinisation);
+        return tree.playout(0, copy, context);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public MOVE getMove(Iterations counter) {
+        MOVE move = pacman.getMove(game, System.currentTimeMillis() + BUDGET);
+        counter.iterations += pacman.getStats().getIterations();
+        return move;
+    }
+}
@@ -0,0 +1,72 @@
+package entrants.pacman.mcmaximiano;
+
+import benchmarks.CapturedStates;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pacman.game.Constants.MOVE;
+import pacman.game.Game;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyPacMan's whole decision with several workers, root parallel (a tree each) against tree parallel
+ * (one shared tree with virtual loss). The iterations counter is the number to compare: decisions per
+ * second stay at one per budget whatever the workers do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelSearchBenchmark {
+    private static final long BUDGET = 40; //Milliseconds per decision
+
+    @Param({"0", "1", "2", "3"})
+    public int maze;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int workers;
+
+    @Param({"false", "true"})
+    public boolean treeParallel;
+
+    private Game game;
+    private MyPacMan pacman;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Iterations {
+        public long iterations;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            iterations = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void capture() {
+        game = CapturedStates.capture(maze);
+        pacman = new MyPacMan().setWorkers(workers).setTreeParallel(treeParallel).setReuseTree(false);
+        pacman.getMove(game, System.currentTimeMillis() + BUDGET); //Builds the beliefs and starts the workers
+    }
+
+    @Benchmark
+    public MOVE getMove(Iterations counter) {
+        MOVE move = pacman.getMove(game, System.currentTimeMillis() + BUDGET);
+        counter.iterations += pacman.getStats().getIterations();
+        return move;
+    }
+}
@@ -0,0 +1,417 @@
+package entrants.pacman.mcmaximiano;
+
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+import pacman.game.Game;
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+import prediction.fast.CompiledMaze;
+import prediction.fast.GhostPolicyTable;
+import prediction.fast.SegmentGraph;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static pacman.game.Constants.*;
+
+/**
+ * Forward model used by the search instead of Game.
+ *
+ * Only keeps what a playout needs (positions, last moves, edible and lair timers, pills as bits and
+ * the score) in a few primitive arrays, so a determinisation is copied in with resetFrom instead of
+ * building a new Game. Steps follow the rules of Game.advanceGame, with two simplifications that
+ * match how the search uses the game: PM has no spare lives (the determinised games never gave her
+ * any), so being caught ends the game, and clearing the level also ends the simulation.
+ */
+final class GameFast {
+    static final int NUM_GHOSTS = GHOST.values().length;
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final int NEUTRAL = MOVE.NEUTRAL.ordinal();
+    private static final int[] OPPOSITE = new int[MOVES.length];
+    private static final Map<Maze, Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+    static {
+        for (MOVE move : MOVES) {
+            OPPOSITE[move.ordinal()] = move.opposite().ordinal();
+        }
+    }
+
+    private final Layout layout;
+
+    private int pacman;
+    private int pacmanLastMove;
+    private final int[] ghosts = new int[NUM_GHOSTS];
+    private final int[] ghostLastMoves = new int[NUM_GHOSTS];
+    private final int[] edibleTimes = new int[NUM_GHOSTS];
+    private final int[] lairTimes = new int[NUM_GHOSTS];
+    private final int[] ghostMoves = new int[NUM_GHOSTS]; //Scratch for the moves chosen this step
+    private final long[] pills; //Bit i is pill index i
+    private long powerPills;
+    private int pillsLeft;
+    private int score;
+    private int totalTime;
+    private int levelTime;
+    private int level;
+    private int ghostEatMultiplier;
+    private boolean gameOver;
+    private long pillHash; //Zobrist keys of the pills and power pills still there, kept up to date as they are eaten
+
+    GameFast(Maze maze) {
+        layout = LAYOUTS.computeIfAbsent(maze, Layout::new);
+        pills = new long[(maze.pillIndices.length + 63) >>> 6];
+    }
+
+    /* Setting up a state */
+
+    //Takes what PM knows for certain from the game, and the pills she believes are left
+    void set(Game game, BitSet pillsBelieved, long powerPillsBelieved) {
+        pacman = game.getPacmanCurrentNodeIndex();
+        pacmanLastMove = game.getPacmanLastMoveMade().ordinal();
+        Arrays.fill(pills, 0L);
+        for (int i = pillsBelieved.nextSetBit(0); i >= 0 && i < layout.maze.pillIndices.length; i = pillsBelieved.nextSetBit(i + 1)) {
+            pills[i >>> 6] |= 1L << i;
+        }
+        pillsLeft = 0;
+        for (long word : pills) pillsLeft += Long.bitCount(word);
+        powerPills = powerPillsBelieved;
+        pillHash = 0;
+        for (int i = 0; i < layout.pillKeys.length; i++) {
+            if ((pills[i >>> 6] & (1L << i)) != 0) pillHash ^= layout.pillKeys[i];
+        }
+        for (int i = 0; i < layout.powerPillKeys.length; i++) {
+            if ((powerPills & (1L << i)) != 0) pillHash ^= layout.powerPillKeys[i];
+        }
+        score = game.getScore();
+        totalTime = game.getTotalTime();
+        levelTime = game.getCurrentLevelTime();
+        level = game.getCurrentLevel();
+        ghostEatMultiplier = 1;
+        gameOver = false;
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            setGhost(ghost, layout.maze.initialGhostNodeIndex, MOVE.NEUTRAL, 0, 0);
+        }
+    }
+
+    void setGhost(int ghost, int index, MOVE lastMoveMade, int edibleTime, int lairTime) {
+        ghosts[ghost] = index;
+        ghostLastMoves[ghost] = lastMoveMade.ordinal();
+        edibleTimes[ghost] = Math.max(0, edibleTime); //PM's own tracking uses -1 for "not edible"
+        lairTimes[ghost] = lairTime;
+    }
+
+    void resetFrom(GameFast other) {
+        pacman = other.pacman;
+        pacmanLastMove = other.pacmanLastMove;
+        System.arraycopy(other.ghosts, 0, ghosts, 0, NUM_GHOSTS);
+        System.arraycopy(other.ghostLastMoves, 0, ghostLastMoves, 0, NUM_GHOSTS);
+        System.arraycopy(other.edibleTimes, 0, edibleTimes, 0, NUM_GHOSTS);
+        System.arraycopy(other.lairTimes, 0, lairTimes, 0, NUM_GHOSTS);
+        System.arraycopy(other.pills, 0, pills, 0, pills.length);
+        powerPills = other.powerPills;
+        pillsLeft = other.pillsLeft;
+        score = other.score;
+        totalTime = other.totalTime;
+        levelTime = other.levelTime;
+        level = other.level;
+        ghostEatMultiplier = other.ghostEatMultiplier;
+        gameOver = other.gameOver;
+        pillHash = other.pillHash;
+    }
+
+    /* Simulation */
+
+    //One game tick: the ghosts pick their moves against where PM is now, then everyone moves
+    void advance(MOVE pacmanMove) {
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            ghostMoves[ghost] = basicGhostMove(ghost);
+        }
+        boolean powerPillEaten = updatePacMan(pacmanMove.ordinal());
+        if (powerPillEaten) {
+            reverseGhosts();
+        } else {
+            updateGhosts();
+        }
+        feast();
+        if (gameOver) return;
+        updateLairTimes();
+        totalTime++;
+        levelTime++;
+        if ((pillsLeft == 0 && powerPills == 0) || levelTime >= LEVEL_LIMIT) { //Level over, nothing more to simulate
+            level++;
+            gameOver = true;
+        }
+    }
+
+    //Takes move and then follows the corridor it leads into up to the next junction, for at most maxSteps ticks.
+    //Returns how many ticks were simulated
+    int advanceCorridor(MOVE move, int maxSteps) {
+        SegmentGraph segments = layout.segments;
+        int segment = segments.getSegment(pacman, move.ordinal());
+        if (segment == -1) {
+            advance(move);
+            return 1;
+        }
+        int offset = segments.getOffset(pacman, move.ordinal());
+        int steps = Math.min(segments.getLength(segment) - offset, maxSteps);
+        if (!isCorridorClear(segment, offset, steps)) { //Something can happen on the way, so go tick by tick
+            for (int step = 0; step < steps; step++) {
+                advance(MOVES[segments.getMove(segment, offset + step)]);
+                if (gameOver) return step + 1;
+            }
+            return steps;
+        }
+
+        //Nothing can happen to PM on the way: only the ghosts and the timers need stepping
+        for (int step = 0; step < steps; step++) {
+            for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+                ghostMoves[ghost] = basicGhostMove(ghost);
+            }
+            pacmanLastMove = segments.getMove(segment, offset + step);
+            pacman = segments.getNode(segment, offset + step);
+            updateGhosts();
+            for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+                if (edibleTimes[ghost] > 0) edibleTimes[ghost]--;
+            }
+            updateLairTimes();
+        }
+        totalTime += steps;
+        levelTime += steps;
+        for (int pill = segments.getFirstPill(segment); pill < segments.getFirstPill(segment + 1); pill++) {
+            int step = segments.getPillStep(pill);
+            int index = segments.getPillIndex(pill);
+            if (step >= offset && step < offset + steps && (pills[index >>> 6] & (1L << index)) != 0) {
+                pills[index >>> 6] &= ~(1L << index);
+                pillHash ^= layout.pillKeys[index];
+                pillsLeft--;
+                score += PILL;
+            }
+        }
+        return steps;
+    }
+
+    //True if no ghost can come within eating distance of the corridor in the given number of ticks, and neither
+    //a power pill nor the end of the level is on the way. Any path into a corridor passes one of its two ends,
+    //so a ghost outside it is only a danger if it is close enough to one of them
+    private boolean isCorridorClear(int segment, int offset, int steps) {
+        SegmentGraph segments = layout.segments;
+        if (levelTime + steps >= LEVEL_LIMIT) return false;
+        int pillsOnTheWay = 0;
+        for (int pill = segments.getFirstPill(segment); pill < segments.getFirstPill(segment + 1); pill++) {
+            int step = segments.getPillStep(pill);
+            int index = segments.getPillIndex(pill);
+            if (step >= offset && step < offset + steps && (pills[index >>> 6] & (1L << index)) != 0) pillsOnTheWay++;
+        }
+        if (powerPills == 0 && pillsOnTheWay >= pillsLeft) return false;
+        for (int step = offset; step < offset + steps; step++) {
+            int powerPill = segments.getPowerPill(segment, step);
+            if (powerPill != -1 && (powerPills & (1L << powerPill)) != 0) return false;
+        }
+        int corridor = segments.getCorridor(segment);
+        int reach = steps + EAT_DISTANCE;
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            if (lairTimes[ghost] > 0 && lairTimes[ghost] <= steps) return false; //It would come out on the way
+            int index = ghosts[ghost];
+            if (corridor != -1 && segments.getCorridorOf(index) == corridor) return false;
+            int fromStart = layout.distance(index, segments.getStart(segment));
+            int fromEnd = layout.distance(index, segments.getEnd(segment));
+            if (fromStart <= reach || fromEnd <= reach) return false;
+        }
+        return true;
+    }
+
+    //If it's a junction the ghost chases PM, or runs from her while edible; otherwise it keeps going
+    private int basicGhostMove(int ghost) {
+        int index = ghosts[ghost];
+        if (!layout.graph.isJunction(index)) return ghostLastMoves[ghost];
+        return layout.ghostPolicy.getMove(index, ghostLastMoves[ghost], pacman, edibleTimes[ghost] > 0);
+    }
+
+    //Returns true if a power pill was eaten
+    private boolean updatePacMan(int move) {
+        if (move == NEUTRAL || layout.graph.getNeighbour(pacman, move) == -1) { //Same correction as the game
+            move = (pacmanLastMove != NEUTRAL && layout.graph.getNeighbour(pacman, pacmanLastMove) != -1) ? pacmanLastMove : NEUTRAL;
+        }
+        pacmanLastMove = move;
+        if (move != NEUTRAL) pacman = layout.graph.getNeighbour(pacman, move);
+
+        int pill = layout.pillIndices[pacman];
+        if (pill != -1 && (pills[pill >>> 6] & (1L << pill)) != 0) {
+            pills[pill >>> 6] &= ~(1L << pill);
+            pillHash ^= layout.pillKeys[pill];
+            pillsLeft--;
+            score += PILL;
+        }
+        int powerPill = layout.powerPillIndices[pacman];
+        if (powerPill != -1 && (powerPills & (1L << powerPill)) != 0) {
+            powerPills &= ~(1L << powerPill);
+            pillHash ^= layout.powerPillKeys[powerPill];
+            score += POWER_PILL;
+            ghostEatMultiplier = 1;
+            int edibleTime = (int) (EDIBLE_TIME * (Math.pow(EDIBLE_TIME_REDUCTION, level % LEVEL_RESET_REDUCTION)));
+            for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+                edibleTimes[ghost] = (lairTimes[ghost] == 0) ? edibleTime : 0;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void reverseGhosts() {
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            if (lairTimes[ghost] == 0 && ghostLastMoves[ghost] != NEUTRAL) {
+                int move = OPPOSITE[ghostLastMoves[ghost]];
+                int next = layout.graph.getNeighbour(ghosts[ghost], move);
+                if (next == -1) continue;
+                ghostLastMoves[ghost] = move;
+                ghosts[ghost] = next;
+            }
+        }
+    }
+
+    private void updateGhosts() {
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            if (lairTimes[ghost] != 0) continue;
+            if (edibleTimes[ghost] == 0 || edibleTimes[ghost] % GHOST_SPEED_REDUCTION != 0) { //Edible ghosts are slower
+                int move = checkGhostDir(ghost, ghostMoves[ghost]);
+                if (move == NEUTRAL) continue;
+                ghostLastMoves[ghost] = move;
+                ghosts[ghost] = layout.graph.getNeighbour(ghosts[ghost], move);
+            }
+        }
+    }
+
+    //Ghosts can't reverse, and keep going (or take the only turn) if the move they asked for is a wall
+    private int checkGhostDir(int ghost, int move) {
+        int index = ghosts[ghost];
+        int lastMove = ghostLastMoves[ghost];
+        if (move != NEUTRAL && layout.graph.getNeighbour(index, move) != -1 && move != OPPOSITE[lastMove]) return move;
+        if (lastMove != NEUTRAL && layout.graph.getNeighbour(index, lastMove) != -1) return lastMove;
+        return layout.graph.getMoveCount(index, lastMove) == 0 ? NEUTRAL : layout.graph.getMove(index, lastMove, 0);
+    }
+
+    private void feast() {
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            int distance = layout.distance(pacman, ghosts[ghost]);
+            if (distance <= EAT_DISTANCE && distance != -1) {
+                if (edibleTimes[ghost] > 0) { //PM eats the ghost
+                    score += GHOST_EAT_SCORE * ghostEatMultiplier;
+                    ghostEatMultiplier *= 2;
+                    edibleTimes[ghost] = 0;
+                    lairTimes[ghost] = (int) (COMMON_LAIR_TIME * (Math.pow(LAIR_REDUCTION, level % LEVEL_RESET_REDUCTION)));
+                    ghosts[ghost] = layout.maze.lairNodeIndex;
+                    ghostLastMoves[ghost] = NEUTRAL;
+                } else { //The ghost eats PM, and she has no lives to spare
+                    gameOver = true;
+                    return;
+                }
+            }
+        }
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            if (edibleTimes[ghost] > 0) edibleTimes[ghost]--;
+        }
+    }
+
+    private void updateLairTimes() {
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            if (lairTimes[ghost] > 0 && --lairTimes[ghost] == 0) {
+                ghosts[ghost] = layout.maze.initialGhostNodeIndex;
+            }
+        }
+    }
+
+    /* Queries */
+
+    boolean gameOver() {
+        return gameOver;
+    }
+
+    int getPacmanCurrentNodeIndex() {
+        return pacman;
+    }
+
+    //Every move PM can make from where she is, backwards included
+    MOVE[] getAllLegalMoves() {
+        return layout.graph.getAllMoves(pacman);
+    }
+
+    //The node move takes PM to, -1 if there is none
+    int getPacmanNeighbour(MOVE move) {
+        return layout.graph.getNeighbour(pacman, move.ordinal());
+    }
+
+    MOVE[] getLegalMovesNotIncludingBackwards() {
+        return layout.graph.getPossibleMoves(pacman, pacmanLastMove);
+    }
+
+    int getScore() {
+        return score;
+    }
+
+    int getTotalTime() {
+        return totalTime;
+    }
+
+    int getCurrentLevel() {
+        return level;
+    }
+
+    //Zobrist hash of PM's node and last move, where the ghosts are (and whether they are edible) and the pills left.
+    //The pill part is updated as pills are eaten, the rest is only a handful of lookups
+    long hash() {
+        long hash = pillHash ^ layout.pacmanKeys[pacman * MOVES.length + pacmanLastMove];
+        int nodes = layout.maze.graph.length;
+        for (int ghost = 0; ghost < NUM_GHOSTS; ghost++) {
+            hash ^= layout.ghostKeys[((ghost * nodes + ghosts[ghost]) << 1) + (edibleTimes[ghost] > 0 ? 1 : 0)];
+        }
+        return hash;
+    }
+
+    //Maze data in flat arrays, built once per maze and shared by every simulator on it
+    private static final class Layout {
+        final Maze maze;
+        final CompiledMaze graph;
+        final int[] pillIndices; //[node], -1 if no pill spawns there
+        final int[] powerPillIndices;
+        final GhostPolicyTable ghostPolicy;
+        final SegmentGraph segments;
+        final long[] pacmanKeys; //Zobrist keys, [node * 5 + lastMove]
+        final long[] ghostKeys; //[(ghost * nodes + node) * 2 + edible]
+        final long[] pillKeys;
+        final long[] powerPillKeys;
+
+        Layout(Maze maze) {
+            this.maze = maze;
+            ghostPolicy = GhostPolicyTable.forMaze(maze);
+            segments = SegmentGraph.forMaze(maze);
+            graph = CompiledMaze.forMaze(maze);
+            int nodes = maze.graph.length;
+            pillIndices = new int[nodes];
+            powerPillIndices = new int[nodes];
+            for (int i = 0; i < nodes; i++) {
+                Node node = maze.graph[i];
+                pillIndices[i] = node.pillIndex;
+                powerPillIndices[i] = node.powerPillIndex;
+            }
+            Random random = new Random(nodes); //Any keys will do, as long as they are the same every run
+            pacmanKeys = randomKeys(random, nodes * MOVES.length);
+            ghostKeys = randomKeys(random, NUM_GHOSTS * nodes * 2);
+            pillKeys = randomKeys(random, maze.pillIndices.length);
+            powerPillKeys = randomKeys(random, maze.powerPillIndices.length);
+        }
+
+        private static long[] randomKeys(Random random, int length) {
+            long[] keys = new long[length];
+            for (int i = 0; i < length; i++) keys[i] = random.nextLong();
+            return keys;
+        }
+
+        int distance(int from, int to) {
+            if (from == to) return 0;
+            if (from < to) return maze.shortestPathDistances[((to * (to + 1)) / 2) + from];
+            return maze.shortestPathDistances[((from * (from + 1)) / 2) + to];
+        }
+    }
+}
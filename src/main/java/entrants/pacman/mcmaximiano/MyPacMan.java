@@ -5,17 +5,29 @@ import pacman.game.Constants;
 import pacman.game.Constants.DM;
 import pacman.game.Constants.MOVE;
 import pacman.game.Game;
-import pacman.game.info.GameInfo;
-import pacman.game.internal.Ghost;
-import pacman.game.internal.PacMan;
-import prediction.GhostLocation;
+import prediction.GhostTracker;
 import prediction.PillModel;
+import prediction.fast.CompactGhostPredictions;
+import prediction.fast.CompiledMaze;
+import prediction.fast.GhostHorizon;
 import prediction.fast.GhostPredictionsFast;
-
+import prediction.fast.LineOfSight;
+import prediction.fast.ParticleGhostTracker;
+import prediction.fast.VisibilityCache;
+import stats.SearchStats;
+import stats.SearchStatsSink;
+
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EnumMap;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 
@@ -29,26 +41,192 @@ import pacman.game.internal.Maze;
  * be placed in this package or sub-packages (e.g., entrants.pacman.username).
  */
 public class MyPacMan extends PacmanController {
+    private static final MOVE[] MOVES = MOVE.values();
 
     private Maze currentMaze;
-    private GhostPredictionsFast predictions;
+    private GhostTracker predictions;
+    protected int particles = 0; //Per ghost for a ParticleGhostTracker, 0 to keep every node's probability in a GhostPredictionsFast
+    protected boolean compactBeliefs = false; //Every node's probability as a float in a CompactGhostPredictions instead, unless tracking particles
+    private VisibilityCache visibility; //What PM can see from each node of the current maze
+    protected boolean lineOfSight = false; //Take what PM can see from a precomputed LineOfSight instead of asking the game
+    protected String lineOfSightDirectory; //Where LineOfSight indices are kept between runs, null to build them every run
+    protected int dangerHorizon = 0; //Steps of ghost occupancy the chosen move is checked against, 0 to trust the search
+    protected double dangerThreshold = 0.5; //Chance of a ghost on a node that makes a move into it dangerous
+    GhostHorizon horizon; //Of this tick, null when off; rollouts read it too
+    int horizonTime; //Total time of the tick the horizon starts from
     private PillModel pillModel;
+    private long powerPills; //Bit i set while power pill i is believed to be there
+    private GameFast base; //What is known for certain this tick, every determinisation starts from it
     private int[] ghostEdibleTime;
     protected Game mostRecentGame;
     protected int maxTreeDepth = 30;
     protected int maxPlayoutDepth = 250;
+    protected int workers = 1; //Number of threads searching per decision; more is opt in, as each one takes a core
+    protected boolean treeParallel = false; //Workers share one tree instead of growing one each
+    protected boolean reuseTree = false; //Keep the subtree below the move played for the next decision
+    protected int determinisations = 0; //Ghost samples drawn per worker per tick and shared by its iterations, 0 to sample every iteration
+    protected int refreshInterval = 64; //Iterations between replacing one of those samples with a fresh one, 0 to keep them all tick long
+    protected boolean anytime = false; //Workers search while the caller only waits, so a move is returned in time even if an iteration runs long
+    protected long safetyMargin = 3000000; //Nanoseconds before the deadline that an anytime search returns its move
+    private ExecutorService workerPool;
+    private int workerPoolSize;
+    private final List<Future<SearchContext>> running = new ArrayList<>(); //Searches of this decision not yet joined
+    private boolean unrecorded; //The last decision's statistics are waiting for its workers to finish
+    private long searchStart; //Of the last decision, so an anytime search's time can be taken once its workers finish
+    private long nextSeed = new SplittableRandom().nextLong(); //Of the next decision; its workers' seeds and the one after it are drawn from it
+    private final ThreadLocal<SearchContext> contexts = ThreadLocal.withInitial(SearchContext::new); //Playout buffers of each worker thread
+    protected int treeCapacity = 1 << 18; //Most nodes per tree; arenas start far smaller and double after a decision that fills them
+    protected int transpositionTableSize = 0; //Entries per tree, 0 to keep every path's statistics separate
+    private SearchTree[] trees; //One per worker, a single shared one when tree parallel
+    private SearchTree[] spareTrees; //Reused subtrees are copied into these, then the two are swapped
+    private boolean treesValid; //Whether the trees still describe the future, so their subtrees can be reused
+    private MOVE lastMovePlayed;
+    private int lastLevel;
+    protected boolean ponder = false; //Keep searching below the move played until the next getMove
+    protected long maxPonderTime = 1000; //Milliseconds, in case getMove is never called again
+    private ExecutorService ponderThread;
+    private Future<Integer> ponderResult; //Iterations pondered
+    private volatile boolean stopPondering;
+    private long ponderSeed; //Drawn with the workers' seeds of the decision the pondering follows
+    private int pondered; //Iterations pondered before the current decision
+    private boolean predictionsOutdated; //The update after a search is left until the next tick, so that pondering samples the same beliefs as the search
+    private final SearchStats stats = new SearchStats(); //Of the last decision, summed over the workers
+    private SearchStatsSink statsSink;
 
     public MyPacMan() {
         ghostEdibleTime = new int[Constants.GHOST.values().length];
     }
 
+    //The calling thread searches one of the trees itself unless anytime, so 1 means the original single-threaded search
+    public MyPacMan setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+        trees = null; //Whether a tree is shared is fixed when it is made
+        return this;
+    }
+
+    //The search runs only on workers and the caller takes the best move so far once the margin before timeDue is reached.
+    //Workers still in an iteration then finish it in the background, where they are joined and the decision recorded
+    public MyPacMan setAnytime(boolean anytime) {
+        this.anytime = anytime;
+        return this;
+    }
+
+    public MyPacMan setSafetyMargin(long millis) {
+        this.safetyMargin = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+        return this;
+    }
+
+    //Tree parallelisation: all workers search a single shared tree, kept apart by virtual loss
+    public MyPacMan setTreeParallel(boolean treeParallel) {
+        this.treeParallel = treeParallel;
+        trees = null;
+        return this;
+    }
+
+    public MyPacMan setReuseTree(boolean reuseTree) {
+        this.reuseTree = reuseTree;
+        return this;
+    }
+
+    //Identical states reached by different paths share their statistics; 0 turns it off
+    public MyPacMan setTranspositionTableSize(int entries) {
+        this.transpositionTableSize = Math.max(0, entries);
+        trees = null;
+        return this;
+    }
+
+    public MyPacMan setDeterminisations(int determinisations) {
+        this.determinisations = Math.max(0, determinisations);
+        return this;
+    }
+
+    public MyPacMan setRefreshInterval(int refreshInterval) {
+        this.refreshInterval = Math.max(0, refreshInterval);
+        return this;
+    }
+
+    //The same seed and the same game give every worker the same random numbers, decision after decision.
+    //Each decision's own seed is in its statistics, so setSeed with it replays that decision's sampling
+    public MyPacMan setSeed(long seed) {
+        nextSeed = seed;
+        return this;
+    }
+
+    //Between ticks a background thread goes on searching the tree through the move just played,
+    //so the subtree adopted next tick has had more iterations. Needs tree reuse
+    public MyPacMan setPondering(boolean ponder) {
+        this.ponder = ponder;
+        return this;
+    }
+
+    //Straight lines with no distance limit, which is the game's line of sight; other kinds of partial
+    //observability need the game's own answers
+    public MyPacMan setLineOfSight(boolean lineOfSight) {
+        this.lineOfSight = lineOfSight;
+        currentMaze = null; //Start over with the new source on the next tick
+        return this;
+    }
+
+    public MyPacMan setLineOfSightDirectory(String directory) {
+        this.lineOfSightDirectory = directory;
+        return this;
+    }
+
+    //Particles trade accuracy for a cost that doesn't grow with the maze or the spread of the beliefs.
+    //Takes effect from the next tick, with nothing known about the ghosts
+    public MyPacMan setParticles(int particles) {
+        this.particles = Math.max(0, particles);
+        predictions = null;
+        return this;
+    }
+
+    //Floats and byte moves, for a smaller belief to scan and sample from; also from the next tick
+    public MyPacMan setCompactBeliefs(boolean compactBeliefs) {
+        this.compactBeliefs = compactBeliefs;
+        predictions = null;
+        return this;
+    }
+
+    //Before playing the search's move, follow it for up to horizon steps and swap it for the best safe move if
+    //a ghost is likely (over threshold) to be where PM would be. A ghost only counts once it is no longer edible.
+    //Rollouts avoid the same nodes while they are within the horizon.
+    //The occupancy comes from whichever tracker is in use, moved on a step at a time
+    public MyPacMan setDangerFilter(int horizon, double threshold) {
+        this.dangerHorizon = horizon;
+        this.dangerThreshold = threshold;
+        return this;
+    }
+
+    public MyPacMan setTreeCapacity(int treeCapacity) {
+        this.treeCapacity = treeCapacity;
+        trees = null; //The limit is fixed when an arena is made, so make new ones
+        return this;
+    }
+
     public MOVE getMove(Game game, long timeToDecide) {
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeToDecide - System.currentTimeMillis()); //From here on time is measured with nanoTime
+        stopPondering(); //Nothing below may change while the background search reads it
+        finishSearch();
+        if (predictionsOutdated && predictions != null) {
+            if (workerPool != null) {
+                predictions.update(workerPool); //The workers are idle until the search starts
+            } else {
+                predictions.update();
+            }
+        }
+        predictionsOutdated = false;
 
         //We need a model of the game! Do this to set initial state of the maze:
         if (currentMaze != game.getCurrentMaze()){
             currentMaze = game.getCurrentMaze();
             predictions = null;
             pillModel = null;
+            powerPills = (1L << game.getCurrentMaze().powerPillIndices.length) - 1;
+            base = new GameFast(currentMaze);
+            visibility = lineOfSight ? new VisibilityCache(currentMaze, lineOfSightDirectory == null
+                    ? LineOfSight.forMaze(currentMaze) : LineOfSight.forMaze(currentMaze, new File(lineOfSightDirectory)))
+                    : new VisibilityCache(currentMaze);
+            treesValid = false;
             Arrays.fill(ghostEdibleTime, -1);
         }
 
@@ -60,8 +238,16 @@ public class MyPacMan extends PacmanController {
             predictions = null;
         }
 
+        //The old trees only describe the future if PM is still where they expected him to be
+        if (!reuseTree || game.wasPacManEaten() || game.getCurrentLevel() != lastLevel) {
+            treesValid = false;
+        }
+        lastLevel = game.getCurrentLevel();
+
         if (predictions == null) {
-            predictions = new GhostPredictionsFast(game.getCurrentMaze()); //Predicts ghosts' movement
+            predictions = (particles > 0) //Predicts ghosts' movement
+                    ? new ParticleGhostTracker(currentMaze, particles, new SplittableRandom(~nextSeed))
+                    : compactBeliefs ? new CompactGhostPredictions(currentMaze) : new GhostPredictionsFast(currentMaze);
             predictions.preallocate();
         }
         if (pillModel == null) {
@@ -82,8 +268,13 @@ public class MyPacMan extends PacmanController {
                 pillModel.observe(pillIndex, false); //Then let's tell the game that there is no pill!
             }
         }
+        int powerPillIndex = game.getPowerPillIndex(game.getPacmanCurrentNodeIndex());
+        if (powerPillIndex != -1 && Boolean.FALSE.equals(game.isPowerPillStillAvailable(powerPillIndex))) {
+            powerPills &= ~(1L << powerPillIndex);
+        }
 
         // Get observations of ghosts and pass them in to the predictor (accounts for partial observability)
+        long[] visible = visibility.getVisible(game);
         for (Constants.GHOST ghost : Constants.GHOST.values()) {
             if (ghostEdibleTime[ghost.ordinal()] != -1) {
                 ghostEdibleTime[ghost.ordinal()]--;
@@ -91,272 +282,333 @@ public class MyPacMan extends PacmanController {
 
             int ghostIndex = game.getGhostCurrentNodeIndex(ghost);
             if (ghostIndex != -1) { //We see the ghost!
-                predictions.observe(ghost, ghostIndex, game.getGhostLastMoveMade(ghost));
+                predictions.observe(ghost, ghostIndex, game.getGhostLastMoveMade(ghost), game.getGhostEdibleTime(ghost));
                 ghostEdibleTime[ghost.ordinal()] = game.getGhostEdibleTime(ghost);
-            } else { //We do not see the ghost...
-                List<GhostLocation> locations = predictions.getGhostLocations(ghost);
-                locations.stream().filter(location -> game.isNodeObservable(location.getIndex())).forEach(location -> {
-                    predictions.observeNotPresent(ghost, location.getIndex());
-                });
+            } else { //We do not see the ghost, so it is nowhere we can see
+                predictions.observeNotPresent(ghost, visible);
             }
         }
-        //Now we have the game modeled! Next comes MCTS:
-        Node root = new Node(this, game);
-        while(System.currentTimeMillis() < timeToDecide) {
-            Game copy = obtainDeterminisedState(game); //MCTS can't deal with PO by itself. We give it a copy of the game without PO, so MCTS thinks it sees everything
-            //Select & Expand
-            Node node = root.select_expand(copy); //This method fully expands the current node and selects the best child
-            // Play-out
-            double gameScore = node.playout(copy);
-            // Back-propagate
-            node.backPropagate(gameScore);
-        }
-        predictions.update();
-        return root.selectBestMove(game);
-    }
-
-    private Game obtainDeterminisedState(Game game) {
-        GameInfo info = game.getPopulatedGameInfo();
-        info.setPacman(new PacMan(game.getPacmanCurrentNodeIndex(), game.getPacmanLastMoveMade(), 0, false));
-        EnumMap<Constants.GHOST, GhostLocation> locations = predictions.sampleLocations();
-        info.fixGhosts(ghost -> {
-            GhostLocation location = locations.get(ghost);
-            if (location != null) {
-                int edibleTime = ghostEdibleTime[ghost.ordinal()];
-                return new Ghost(ghost, location.getIndex(), edibleTime, 0, location.getLastMoveMade());
-            } else {
-                return new Ghost(ghost, game.getGhostInitialNodeIndex(), 0, 0, MOVE.NEUTRAL);
+        if (dangerHorizon > 0) {
+            if (horizon == null || horizon.getMaze() != currentMaze || horizon.getHorizon() != dangerHorizon) {
+                horizon = new GhostHorizon(currentMaze, dangerHorizon);
             }
-        });
-
-        for (int i = 0; i < pillModel.getPills().length(); i++) {
-            info.setPillAtIndex(i, pillModel.getPills().get(i));
+            horizon.compute(predictions, ghostEdibleTime);
+            horizonTime = game.getTotalTime();
+        } else {
+            horizon = null; //Nothing to check moves against this tick
         }
-        return game.getGameFromInfo(info);
-    }
-}
-
-class Node {
-
-    private final MyPacMan MyPacMan;
-    private Node parent;
-    private MOVE prevMove;
-    private MOVE[] legalMoves;
-    private Node[] children;
-    private int expandedChildren;
-
-    private int visits;
-    private double score;
-    private int treeDepth;
-
-
-    /* Constructors */
-
-    public Node(MyPacMan MyPacMan, Game game) { //Constructor for root node
-        this.MyPacMan = MyPacMan;
-        treeDepth = 0;
-
-        this.legalMoves = getLegalMovesNotIncludingBackwards(game);
-
-        this.children = new Node[legalMoves.length];
-    }
-
-    public Node(Node parent, MOVE previousMove, MOVE[] legalMoves) { //Constructor for child node
-        this.MyPacMan = parent.MyPacMan;
-        this.parent = parent;
-        this.treeDepth = parent.treeDepth + 1;
-        this.prevMove = previousMove;
-        this.legalMoves = legalMoves;
-        this.children = new Node[legalMoves.length];
+        //Now we have the game modeled! Next comes MCTS:
+        base.set(game, pillModel.getPills(), powerPills);
+        search(game, anytime ? due - safetyMargin : due);
+        lastMovePlayed = selectBestMove(game);
+        predictionsOutdated = true;
+        stats.setOverrunNanos(System.nanoTime() - due);
+        if (!anytime) finishSearch();
+        if (anytime || (ponder && reuseTree)) startBackground(game, (ponder && reuseTree) ? lastMovePlayed : null);
+        return lastMovePlayed;
     }
 
-
-    /* MCTS methods */
-
-    public Node select_expand(Game game) {
-        Node current = this;
-        while (current.treeDepth < MyPacMan.maxTreeDepth && !game.gameOver()) {
-            if (current.isFullyExpanded()) {
-                current = current.selectBestChild();
-                game.advanceGame(current.prevMove, getBasicGhostMoves(game)); //Assume ghosts' behaviour is simple
-            } else { //Should expand all children before choosing the best one
-                current = current.expand(game);
-                game.advanceGame(current.prevMove, getBasicGhostMoves(game)); //Assume ghosts' behaviour is simple
-                return current;
+    //Root parallelisation: each worker grows its own tree from its own determinisations,
+    //then the statistics of the roots' children are summed by move.
+    //Tree parallelisation: every worker runs its iterations on the same tree instead.
+    private void search(Game game, long deadline) {
+        searchStart = System.nanoTime();
+        int count = treeParallel ? 1 : workers;
+        if (trees == null || trees.length != count) {
+            trees = new SearchTree[count];
+            spareTrees = new SearchTree[count];
+            for (int i = 0; i < count; i++) {
+                //A tree and its spare never search at the same time, so they can share a table
+                TranspositionTable table = (transpositionTableSize > 0) ? new TranspositionTable(transpositionTableSize) : null;
+                trees[i] = new SearchTree(this, treeCapacity, table, treeParallel && workers > 1);
+                spareTrees[i] = new SearchTree(this, treeCapacity, table, treeParallel && workers > 1);
             }
+            treesValid = false;
         }
-        return current;
-    }
-
-    public double playout(Game game) {
-        int depth = treeDepth;
-        Random random = new Random();
-        while (depth < MyPacMan.maxPlayoutDepth) {
-            if (game.gameOver()) break;
-            MOVE[] legalMoves = getAllLegalMoves(game);
-            MOVE randomMove = legalMoves[random.nextInt(legalMoves.length)];
-            game.advanceGame(randomMove, getBasicGhostMoves(game));
-            depth++;
+        for (int i = 0; i < count; i++) {
+            if (treesValid && spareTrees[i].promote(trees[i], lastMovePlayed, game)) { //Swap arenas, the old one is free again
+                SearchTree promoted = spareTrees[i];
+                spareTrees[i] = trees[i];
+                trees[i] = promoted;
+            } else {
+                trees[i].reset(game);
+            }
         }
-        return calculateGameScore(game);
-    }
-
-    public void backPropagate(double value) {
-        Node current = this;
-        while (current.parent != null) {
-            current.visits++;
-            current.score += value;
-            current = current.parent;
+        treesValid = true;
+
+        stats.reset();
+        stats.setDecision(game.getMazeIndex(), game.getCurrentLevel(), game.getTotalTime());
+        stats.setPonderIterations(pondered);
+        stats.setSeed(nextSeed);
+        SplittableRandom seeds = new SplittableRandom(nextSeed);
+        long[] seedOf = new long[workers];
+        for (int i = 0; i < workers; i++) seedOf[i] = seeds.nextLong(); //The same whichever thread runs the worker
+        ponderSeed = seeds.nextLong();
+        nextSeed = seeds.nextLong();
+        unrecorded = true;
+        int first = anytime ? 0 : 1; //Unless anytime, the calling thread is a worker too
+        int poolSize = workers - first;
+        if (poolSize > 0 && (workerPool == null || workerPoolSize != poolSize)) {
+            if (workerPool != null) workerPool.shutdown(); //Sized for another number of workers, and none of them are busy
+            workerPool = Executors.newFixedThreadPool(poolSize, runnable -> {
+                Thread thread = new Thread(runnable, "MyPacMan-worker");
+                thread.setDaemon(true); //Never keep the JVM alive after the game ends
+                return thread;
+            });
+            workerPoolSize = poolSize;
+        }
+        for (int i = first; i < workers; i++) {
+            SearchTree tree = trees[treeParallel ? 0 : i];
+            long workerSeed = seedOf[i];
+            running.add(workerPool.submit(() -> runSearch(tree, game, deadline, workerSeed)));
+        }
+        if (anytime) {
+            //Wait for the deadline, not for the workers: whatever the roots hold by then is the answer
+            for (Future<SearchContext> result : running) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                try {
+                    result.get(remaining, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    //Reported when the workers are joined
+                }
+            }
+        } else {
+            stats.add(runSearch(trees[0], game, deadline, seedOf[0]).stats);
+            joinWorkers();
+            stats.setElapsedNanos(System.nanoTime() - searchStart);
         }
-        current.visits++;
     }
 
-
-    /* Auxiliar methods */
-
-    protected MOVE[] getLegalMovesNotIncludingBackwards(Game game) {
-        return game.getCurrentMaze().graph[game.getPacmanCurrentNodeIndex()].allPossibleMoves.get(game.getPacmanLastMoveMade());
+    private void joinWorkers() {
+        for (Future<SearchContext> result : running) {
+            try {
+                stats.add(result.get().stats);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.err.println("Search worker failed: " + e.getCause());
+            }
+        }
+        running.clear();
     }
 
-    protected MOVE[] getAllLegalMoves(Game game) {
-        Maze maze = game.getCurrentMaze();
-        int index = game.getPacmanCurrentNodeIndex();
-        return maze.graph[index].neighbourhood.keySet().toArray(new MOVE[maze.graph[index].neighbourhood.keySet().size()]);
+    //Completes the statistics of the last decision once no worker touches its trees any more
+    private void finishSearch() {
+        if (!unrecorded) return;
+        boolean anytimeSearch = !running.isEmpty(); //Otherwise the search joined its workers itself
+        joinWorkers();
+        if (anytimeSearch) stats.setElapsedNanos(System.nanoTime() - searchStart); //It only ends with the last worker
+        int treeSize = 0;
+        for (SearchTree tree : trees) treeSize += tree.size();
+        stats.setTreeSize(treeSize);
+        if (statsSink != null) statsSink.record(stats);
+        unrecorded = false;
     }
 
-    protected EnumMap<Constants.GHOST, MOVE> getBasicGhostMoves(Game game) {
-        EnumMap<Constants.GHOST, MOVE> moves = new EnumMap<>(Constants.GHOST.class);
-        int pacmanLocation = game.getPacmanCurrentNodeIndex();
-        for (Constants.GHOST ghost : Constants.GHOST.values()) { //For each ghost...
-            int index = game.getGhostCurrentNodeIndex(ghost); //Get position of ghost in maze
-            MOVE previousMove = game.getGhostLastMoveMade(ghost); //Get last movement of ghost
-            if (game.isJunction(index)) { //If it's a junction, ghost might choose to turn
-                try {
-                    MOVE move = (game.isGhostEdible(ghost))
-                            ? game.getApproximateNextMoveAwayFromTarget(index, pacmanLocation, previousMove, Constants.DM.PATH) //If ghost is edible, it moves away from PM
-                            : game.getNextMoveTowardsTarget(index, pacmanLocation, previousMove, Constants.DM.PATH); //If ghost is unedible, it moves towards PM
-                    moves.put(ghost, move);
-                } catch (NullPointerException npe) {
-                    System.err.println("PacmanLocation: " + pacmanLocation + " Maze Index: " + game.getMazeIndex() + " Last Move: " + previousMove);
+    //Each iteration starts from one of the worker's pooled determinisations, so it only costs a copy
+    private SearchContext runSearch(SearchTree tree, Game game, long deadline, long seed) {
+        SearchContext context = contexts.get();
+        context.prepare(game.getCurrentMaze(), determinisations);
+        context.seed(seed);
+        GameFast copy = context.getGame();
+        GameFast[] pool = context.getPool();
+        SearchStats stats = context.stats;
+        long start = System.nanoTime();
+        for (GameFast determinisation : pool) {
+            obtainDeterminisedState(game, determinisation, context);
+        }
+        long filled = System.nanoTime();
+        stats.addDeterminisation(filled - start);
+        start = filled; //From here on each phase starts when the previous one ends
+        int iteration = 0;
+        while(System.nanoTime() < deadline) {
+            if (pool.length == 0) {
+                obtainDeterminisedState(game, copy, context); //MCTS can't deal with PO by itself. We give it a copy of the game without PO, so MCTS thinks it sees everything
+            } else {
+                GameFast determinisation = pool[iteration % pool.length];
+                if (refreshInterval > 0 && iteration > 0 && iteration % refreshInterval == 0) {
+                    obtainDeterminisedState(game, determinisation, context);
                 }
-            } else { //If it's not junction, ghost will continue forward (because reversing is not possible)
-                moves.put(ghost, previousMove);
+                copy.resetFrom(determinisation);
             }
+            long selectionStart = System.nanoTime();
+            stats.addDeterminisation(selectionStart - start);
+            //Select & Expand
+            int node = tree.select_expand(copy, context); //This method fully expands the current node and selects the best child
+            long playoutStart = System.nanoTime();
+            stats.addSelection(playoutStart - selectionStart);
+            // Play-out
+            double gameScore = tree.playout(node, copy, context);
+            long backPropagationStart = System.nanoTime();
+            stats.addPlayout(backPropagationStart - playoutStart);
+            // Back-propagate
+            tree.backPropagate(node, gameScore, context);
+            start = System.nanoTime();
+            stats.addBackPropagation(start - backPropagationStart);
+            stats.addIteration(tree.getDepth(node));
+            iteration++;
         }
-        return moves;
+        return context;
     }
 
-    private boolean isFullyExpanded() {
-        return children != null && children.length == expandedChildren;
+    //After an anytime search the background thread first joins the workers still in an iteration and records the
+    //decision, so the tree is never pondered while they write to it; then it ponders move, unless that is null
+    private void startBackground(Game game, MOVE move) {
+        SearchTree tree = trees[0];
+        MOVE ponderMove = (move != null && tree.getChild(0, move) != -1) ? move : null; //getNextMove may have turned back, which the tree never searched
+        if (ponderMove == null && !anytime) return;
+        if (ponderThread == null) {
+            ponderThread = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "MyPacMan-ponder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        stopPondering = false;
+        long deadline = System.currentTimeMillis() + maxPonderTime;
+        long seed = ponderSeed;
+        ponderResult = ponderThread.submit(() -> {
+            finishSearch();
+            return (ponderMove == null) ? 0 : ponder(tree, game, ponderMove, deadline, seed);
+        });
     }
 
-    public Node expand(Game game) {
-        int index = -1; //Default value to avoid errors from not initializing
-        Random random = new Random();
-        double bestScore = -Double.MAX_VALUE;
-        for (int i = 0; i < children.length; i++) {
-            if (children[i] == null) { //Check that child #i hasn't been expanded before (just in case...)
-                double score = random.nextDouble();
-                if (score > bestScore) {
-                    index = i;
-                    bestScore = score;
-                }
-            }
+    //Waits for the background thread to finish its iteration
+    private void stopPondering() {
+        pondered = 0;
+        if (ponderResult == null) return;
+        stopPondering = true;
+        try {
+            pondered = ponderResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Pondering failed: " + e.getCause());
         }
-        expandedChildren++;
-
-        game.advanceGame(legalMoves[index], getBasicGhostMoves(game)); //Assume ghosts' behaviour is simple
+        ponderResult = null;
+    }
 
-        MOVE[] childMoves;
-        if (parent == null) { //This means it is the root node
-            childMoves = getAllLegalMoves(game);
-        } else { //If it's not the root, exclude backward movement
-            childMoves = getLegalMovesNotIncludingBackwards(game);
+    //Every iteration goes through the move played: if the game follows it, that subtree is next tick's root
+    private int ponder(SearchTree tree, Game game, MOVE move, long deadline, long seed) {
+        SearchContext context = contexts.get();
+        context.prepare(game.getCurrentMaze(), 0);
+        context.seed(seed);
+        GameFast copy = context.getGame();
+        int iterations = 0;
+        while (!stopPondering && System.currentTimeMillis() < deadline) {
+            obtainDeterminisedState(game, copy, context);
+            int node = tree.select_expand(copy, context, move);
+            double gameScore = tree.playout(node, copy, context);
+            tree.backPropagate(node, gameScore, context);
+            iterations++;
         }
+        return iterations;
+    }
 
-        Node child = new Node(this, legalMoves[index], childMoves);
-        children[index] = child;
-        return child;
+    //Only the ghosts are uncertain, so they are sampled onto a copy of the base state
+    void obtainDeterminisedState(Game game, GameFast copy) {
+        obtainDeterminisedState(game, copy, contexts.get());
     }
 
-    public Node selectBestChild() {
-        Node bestChild = null;
-        double bestScore = -Double.MAX_VALUE;
-        for (Node child : children) {
-            double score = child.calculateChildScore(); //The core of the selection
-            if (score > bestScore) {
-                bestChild = child;
-                bestScore = score;
+    //Samples into the context's arrays, so nothing is allocated per determinisation
+    void obtainDeterminisedState(Game game, GameFast copy, SearchContext context) {
+        copy.resetFrom(base);
+        int[] indices = context.ghostIndices;
+        int[] moves = context.ghostMoves;
+        predictions.sampleLocations(context.random, indices, moves);
+        for (int ghost = 0; ghost < indices.length; ghost++) {
+            if (indices[ghost] != -1) {
+                copy.setGhost(ghost, indices[ghost], MOVES[moves[ghost]], ghostEdibleTime[ghost], 0);
+            } else {
+                copy.setGhost(ghost, game.getGhostInitialNodeIndex(), MOVE.NEUTRAL, 0, 0);
             }
         }
-        return bestChild;
     }
 
-    private double calculateChildScore() {
-        return (score / visits) + Math.sqrt(2 * Math.log((parent.visits + 1) / visits));
+    //Sinks record every decision, null to only keep the last one in getStats
+    public MyPacMan setStatsSink(SearchStatsSink statsSink) {
+        this.statsSink = statsSink;
+        return this;
     }
 
-    private double calculateGameScore(Game game) {
-        return game.getScore() + game.getTotalTime() + (1000 * game.getCurrentLevel());
-
+    //After an anytime decision the background thread still adds the workers' last iterations, so the statistics
+    //are only complete once the next getMove starts, or in the sink
+    public SearchStats getStats() {
+        return stats;
     }
 
-    /* Other methods */
-
-    //Method initially used to select the best move
-    public MOVE selectBestMove() {
-        Node bestChild = null;
+    //The Adaptation
+    private MOVE selectBestMove(Game game) {
+        double[] scoreByMove = new double[MOVES.length];
+        boolean[] expandedByMove = new boolean[MOVES.length];
+        for (SearchTree tree : trees) {
+            tree.addRootScores(scoreByMove, expandedByMove);
+        }
+        MOVE bestMove = null;
         double bestScore = -Double.MAX_VALUE;
-        for (Node child : children) {
-            if (child == null) continue;
-            double score = child.score;
-            if (score > bestScore) {
-                bestChild = child;
-                bestScore = score;
+        for (MOVE move : MOVES) {
+            if (expandedByMove[move.ordinal()] && scoreByMove[move.ordinal()] > bestScore) {
+                bestMove = move;
+                bestScore = scoreByMove[move.ordinal()];
             }
         }
-        return bestChild == null ? MOVE.NEUTRAL : bestChild.prevMove;
-    }
 
-    //The Adaptation
-    public MOVE selectBestMove(Game game) {
-        Node bestChild = null;
-        double bestScore = -Double.MAX_VALUE;
-        for (Node child : children) {
-            if (child == null) continue;
-            double score = child.score;
-            if (score > bestScore) {
-                bestChild = child;
-                bestScore = score;
+        if (bestMove != null && horizon != null && isDangerous(bestMove, game)) {
+            MOVE safeMove = null;
+            double safeScore = -Double.MAX_VALUE;
+            for (MOVE move : MOVES) {
+                if (expandedByMove[move.ordinal()] && scoreByMove[move.ordinal()] > safeScore && !isDangerous(move, game)) {
+                    safeMove = move;
+                    safeScore = scoreByMove[move.ordinal()];
+                }
             }
+            if (safeMove != null) {
+                bestMove = safeMove;
+            } //Otherwise there is nowhere safe to go, so the search knows best
         }
 
-        if (bestChild == null) {
+        if (bestMove == null) {
             return MOVE.NEUTRAL;
         } else {
-            return getNextMove(bestChild, game);
+            return getNextMove(bestMove, game);
         }
     }
 
-    public MOVE getNextMove(Node child, Game game) {
-        int[] ghostEdibleTimeMock;
-        MOVE nextMove = child.prevMove;
-        GhostPredictionsFast predictions;
-        ghostEdibleTimeMock = new int[Constants.GHOST.values().length];
-        Arrays.fill(ghostEdibleTimeMock, -1);
-        predictions = new GhostPredictionsFast(game.getCurrentMaze()); //Predicts ghosts' movement
-        predictions.preallocate();
-        for (Constants.GHOST ghost : Constants.GHOST.values()) {
-            if (ghostEdibleTimeMock[ghost.ordinal()] != -1) {
-                ghostEdibleTimeMock[ghost.ordinal()]--;
+    //Follows move along its corridor up to the next junction or the horizon, checking each node PM reaches against
+    //the ghosts there at that step and the step before, when they could have passed each other
+    private boolean isDangerous(MOVE move, Game game) {
+        CompiledMaze graph = CompiledMaze.forMaze(game.getCurrentMaze());
+        int node = game.getPacmanCurrentNodeIndex();
+        int direction = move.ordinal();
+        for (int step = 1; step <= dangerHorizon; step++) {
+            int next = graph.getNeighbour(node, direction);
+            if (next == -1) {
+                if (graph.isJunction(node) || graph.getMoveCount(node, direction) != 1) return false;
+                direction = graph.getMove(node, direction, 0); //Round the corner, the only way on
+                next = graph.getNeighbour(node, direction);
             }
+            node = next;
+            if (Math.max(horizon.get(step, node), horizon.get(step - 1, node)) > dangerThreshold) return true;
+            if (graph.isJunction(node)) return false; //From here the search has a choice to make
+        }
+        return false;
+    }
 
+    //Runs after the deadline of an anytime search too, so it only looks at the ghosts in sight
+    public MOVE getNextMove(MOVE bestMove, Game game) {
+        MOVE nextMove = bestMove;
+        CompiledMaze graph = CompiledMaze.forMaze(game.getCurrentMaze());
+        for (Constants.GHOST ghost : Constants.GHOST.values()) {
             int ghostIndex = game.getGhostCurrentNodeIndex(ghost);
             if (ghostIndex != -1) { //We see the ghost!
-                predictions.observe(ghost, ghostIndex, game.getGhostLastMoveMade(ghost));
-                ghostEdibleTimeMock[ghost.ordinal()] = game.getGhostEdibleTime(ghost);
                 MOVE ghostDirOpp = game.getNextMoveAwayFromTarget(game.getPacmanCurrentNodeIndex(), game.getGhostCurrentNodeIndex(ghost), DM.PATH); //We get the move we need to do to get away from the ghost we see
-                if (Arrays.stream(getAllLegalMoves(game)).anyMatch(ghostDirOpp::equals) && game.getGhostEdibleTime(ghost) <= 0) { //If the move away from ghost is legal AND ghost is not edible
+                if (graph.getNeighbour(game.getPacmanCurrentNodeIndex(), ghostDirOpp.ordinal()) != -1 && game.getGhostEdibleTime(ghost) <= 0) { //If the move away from ghost is legal AND ghost is not edible
                     nextMove = ghostDirOpp; //Then we force it
                 }
             }
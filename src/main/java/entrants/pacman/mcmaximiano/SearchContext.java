@@ -0,0 +1,61 @@
+package entrants.pacman.mcmaximiano;
+
+import pacman.game.Constants;
+import pacman.game.internal.Maze;
+import stats.SearchStats;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Scratch space owned by a single search thread, so that the select/playout loop can
+ * reuse the same buffers every step instead of allocating new ones.
+ */
+final class SearchContext {
+    SplittableRandom random = new SplittableRandom(); //Reseeded by the controller for every search
+    private Maze maze;
+    private GameFast game; //Every iteration's determinisation is copied into this one
+    private GameFast[] pool = new GameFast[0]; //Determinisations sampled at the start of the tick
+
+    //Hashes of the states and edges passed by the current iteration, for the transposition table
+    long[] path = new long[64];
+    int pathLength;
+
+    final SearchStats stats = new SearchStats(); //Of this thread's last search
+
+    //Where each ghost is sampled to by ordinal, refilled for every determinisation
+    final int[] ghostIndices = new int[Constants.GHOST.values().length];
+    final int[] ghostMoves = new int[Constants.GHOST.values().length];
+
+    //Makes the simulators the first time this thread searches a maze, or when the pool changes size
+    void prepare(Maze maze, int poolSize) {
+        if (this.maze != maze) {
+            this.maze = maze;
+            game = new GameFast(maze);
+            pool = new GameFast[0];
+        }
+        if (pool.length != poolSize) {
+            pool = new GameFast[poolSize];
+            for (int i = 0; i < poolSize; i++) pool[i] = new GameFast(maze);
+        }
+        stats.reset();
+    }
+
+    void seed(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    void addToPath(long state, long edge) {
+        if (pathLength + 2 > path.length) path = Arrays.copyOf(path, path.length * 2);
+        path[pathLength++] = state;
+        path[pathLength++] = edge;
+    }
+
+    GameFast getGame() {
+        return game;
+    }
+
+    GameFast[] getPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,430 @@
+package entrants.pacman.mcmaximiano;
+
+import pacman.game.Constants.MOVE;
+import pacman.game.Game;
+import prediction.fast.CompiledMaze;
+import prediction.fast.GhostHorizon;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The MCTS tree, kept in parallel arrays instead of one object per node.
+ *
+ * Slot 0 is the root. The children of a node are a block of adjacent slots, one per legal move,
+ * allocated when the node itself is expanded, so selecting a child is a loop over contiguous entries.
+ * Nothing is ever freed: reset() empties the whole arena for the next decision, and a reused subtree
+ * is copied into a fresh arena. When the arena is full the tree simply stops growing for that decision.
+ * Arenas start small, as a 40 ms search only reaches a few thousand nodes, and one that filled up is
+ * given twice the room at its next reset or promotion, up to the controller's limit.
+ *
+ * What is written once, before a block is published through firstChildren, lives in plain arrays;
+ * the statistics and expansion state are atomic arrays so that tree-parallel workers can share one tree.
+ */
+final class SearchTree {
+    private static final int NONE = -1;
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final int INITIAL_CAPACITY = 1 << 14;
+
+    private final MyPacMan MyPacMan;
+    private final int maxCapacity;
+    private int capacity;
+    private boolean full; //Some expansion found no room this decision
+    private final AtomicInteger size = new AtomicInteger();
+
+    //Replaced when the arena grows, which only happens between decisions, while no worker holds the tree
+    private int[] parents;
+    private byte[] moves; //Move that leads from the parent to the node
+    private int[] depths;
+    private int[] pacmanIndices; //Where PM was when the node was expanded, used to recognise it as the next root
+    private byte[] childCounts;
+
+    private AtomicIntegerArray firstChildren; //NONE until the node is expanded
+    private AtomicIntegerArray claimed; //1 once a worker has started expanding the node
+    private AtomicIntegerArray expandedChildren;
+    private AtomicIntegerArray visits;
+    private AtomicIntegerArray virtualLosses; //Workers currently below the node, each counted as a visit that scored 0
+    private AtomicLongArray scores; //Raw bits of doubles, so they can be added to with a CAS
+
+    private int[] copyQueue; //Pairs of (old slot, new slot) while copying a subtree
+    private final TranspositionTable table; //Null unless statistics are shared between transpositions
+    private final boolean shared; //Searched by several workers at once; virtual loss is only kept then
+
+    SearchTree(MyPacMan MyPacMan, int maxCapacity, TranspositionTable table, boolean shared) {
+        this.MyPacMan = MyPacMan;
+        this.maxCapacity = maxCapacity;
+        this.table = table;
+        this.shared = shared;
+        allocate(Math.min(maxCapacity, INITIAL_CAPACITY));
+    }
+
+    //Empty arrays of the given size; whatever the old ones held is lost
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        parents = new int[capacity];
+        moves = new byte[capacity];
+        depths = new int[capacity];
+        pacmanIndices = new int[capacity];
+        childCounts = new byte[capacity];
+        firstChildren = new AtomicIntegerArray(capacity);
+        claimed = new AtomicIntegerArray(capacity);
+        expandedChildren = new AtomicIntegerArray(capacity);
+        visits = new AtomicIntegerArray(capacity);
+        virtualLosses = new AtomicIntegerArray(capacity);
+        scores = new AtomicLongArray(capacity);
+        copyQueue = new int[capacity * 2];
+    }
+
+    //Room for the next decision of a tree that had capacity slots, doubled if it filled up
+    private int nextCapacity(int capacity, boolean full) {
+        return full ? Math.min(maxCapacity, capacity * 2) : capacity;
+    }
+
+    private void ensureCapacity(int wanted) {
+        if (wanted > capacity) allocate(wanted);
+        full = false;
+    }
+
+    //Starts a new tree whose root is where PM is now
+    void reset(Game game) {
+        if (table != null) table.nextDecision();
+        ensureCapacity(nextCapacity(capacity, full));
+        size.set(1);
+        clearSlot(0, NONE, MOVE.NEUTRAL.ordinal(), 0);
+        claimed.set(0, 1);
+        pacmanIndices[0] = game.getPacmanCurrentNodeIndex();
+        int index = game.getPacmanCurrentNodeIndex();
+        allocateChildren(0, CompiledMaze.forMaze(game.getCurrentMaze()).getPossibleMoves(index, game.getPacmanLastMoveMade().ordinal()));
+    }
+
+    //Makes the child reached by the move played last time the root of this tree, if the game is where that child
+    //expected it. The subtree is copied out of the previous tree, which can then be reset; false if there is none.
+    //The transposition table keeps its entries, as they hold the statistics of the states in the subtree
+    boolean promote(SearchTree previous, MOVE movePlayed, Game game) {
+        if (movePlayed == null || game.getPacmanLastMoveMade() != movePlayed) return false;
+        int first = previous.firstChildren.get(0);
+        if (first == NONE) return false;
+        for (int child = first; child < first + previous.childCounts[0]; child++) {
+            if (previous.moves[child] == movePlayed.ordinal() && previous.firstChildren.get(child) != NONE
+                    && previous.pacmanIndices[child] == game.getPacmanCurrentNodeIndex()) {
+                ensureCapacity(nextCapacity(previous.capacity, previous.full)); //The subtree fits in what held it
+                copySubtree(previous, child);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Breadth first, so that every block of children stays contiguous in the new arena
+    private void copySubtree(SearchTree from, int source) {
+        int depthShift = from.depths[source];
+        size.set(1);
+        copySlot(from, source, 0, NONE, depthShift);
+        int head = 0;
+        int tail = 0;
+        copyQueue[tail++] = source;
+        copyQueue[tail++] = 0;
+        while (head < tail) {
+            int oldSlot = copyQueue[head++];
+            int newSlot = copyQueue[head++];
+            int first = from.firstChildren.get(oldSlot);
+            if (first == NONE) continue;
+            int count = from.childCounts[oldSlot];
+            int block = size.getAndAdd(count);
+            for (int i = 0; i < count; i++) {
+                copySlot(from, first + i, block + i, newSlot, depthShift);
+                if (from.claimed.get(first + i) != 0) {
+                    copyQueue[tail++] = first + i;
+                    copyQueue[tail++] = block + i;
+                }
+            }
+            childCounts[newSlot] = (byte) count;
+            firstChildren.set(newSlot, block);
+        }
+    }
+
+    private void copySlot(SearchTree from, int oldSlot, int newSlot, int parent, int depthShift) {
+        clearSlot(newSlot, parent, from.moves[oldSlot], from.depths[oldSlot] - depthShift);
+        pacmanIndices[newSlot] = from.pacmanIndices[oldSlot];
+        claimed.set(newSlot, from.claimed.get(oldSlot));
+        expandedChildren.set(newSlot, from.expandedChildren.get(oldSlot));
+        visits.set(newSlot, from.visits.get(oldSlot));
+        scores.set(newSlot, from.scores.get(oldSlot));
+    }
+
+    private void clearSlot(int slot, int parent, int move, int depth) {
+        parents[slot] = parent;
+        moves[slot] = (byte) move;
+        depths[slot] = depth;
+        pacmanIndices[slot] = NONE;
+        childCounts[slot] = 0;
+        firstChildren.set(slot, NONE);
+        claimed.set(slot, 0);
+        expandedChildren.set(slot, 0);
+        visits.set(slot, 0);
+        virtualLosses.set(slot, 0);
+        scores.set(slot, 0);
+    }
+
+    //The block is filled in before it is published, so a worker that sees firstChildren sees all of it
+    private void allocateChildren(int node, MOVE[] childMoves) {
+        int block = size.getAndAdd(childMoves.length);
+        if (block + childMoves.length > capacity) { //Full: the node stays a leaf
+            full = true;
+            return;
+        }
+        for (int i = 0; i < childMoves.length; i++) {
+            clearSlot(block + i, node, childMoves[i].ordinal(), depths[node] + 1);
+        }
+        childCounts[node] = (byte) childMoves.length;
+        firstChildren.set(node, block);
+    }
+
+
+    /* MCTS methods */
+
+    public int select_expand(GameFast game, SearchContext context) {
+        return select_expand(game, context, null);
+    }
+
+    //With a transposition table the hash of every state passed is recorded in the context for backPropagate.
+    //A forced move, if the root has it, is always the one taken from the root (pondering)
+    public int select_expand(GameFast game, SearchContext context, MOVE forcedMove) {
+        int current = 0;
+        addVirtualLoss(current);
+        context.pathLength = 0;
+        while (depths[current] < MyPacMan.maxTreeDepth && !game.gameOver()) {
+            int first = firstChildren.get(current);
+            if (first == NONE) return current; //Another worker is still expanding it, or the arena is full
+            int count = childCounts[current];
+            long state = (table == null) ? 0 : game.hash();
+            int forced = (current == 0 && forcedMove != null) ? getChild(0, forcedMove) : NONE;
+            if (forced != NONE) {
+                boolean expanded = claimed.get(forced) == 0 && tryClaim(forced);
+                if (expanded) {
+                    expandClaimed(current, forced, game);
+                } else {
+                    addVirtualLoss(forced);
+                }
+                if (table != null) context.addToPath(state, TranspositionTable.edge(state, moves[forced]));
+                game.advance(forcedMove);
+                if (expanded) return forced;
+                current = forced;
+                continue;
+            }
+            if (expandedChildren.get(current) < count) { //Should expand all children before choosing the best one
+                int child = expand(current, first, count, game, context);
+                if (child != NONE) {
+                    if (table != null) context.addToPath(state, TranspositionTable.edge(state, moves[child]));
+                    game.advance(MOVES[moves[child]]);
+                    return child;
+                } //Otherwise another worker took the last unexpanded child, so select among them instead
+            }
+            current = (table == null) ? selectBestChild(current, first, count) : selectBestTransposition(current, first, count, state);
+            if (table != null) context.addToPath(state, TranspositionTable.edge(state, moves[current]));
+            addVirtualLoss(current);
+            game.advance(MOVES[moves[current]]);
+        }
+        return current;
+    }
+
+    //Only uses the buffers of the context, so the loop itself allocates nothing.
+    //PM can only choose at junctions, so each random move is followed down its whole corridor at once
+    public double playout(int node, GameFast game, SearchContext context) {
+        int depth = depths[node];
+        SplittableRandom random = context.random;
+        while (depth < MyPacMan.maxPlayoutDepth) {
+            if (game.gameOver()) break;
+            MOVE[] legalMoves = game.getAllLegalMoves();
+            MOVE randomMove = rolloutMove(legalMoves, game, random);
+            depth += game.advanceCorridor(randomMove, MyPacMan.maxPlayoutDepth - depth);
+        }
+        return calculateGameScore(game);
+    }
+
+    //Uniformly random, but while the ghost horizon reaches it leaves out the moves onto a node a ghost is likely
+    //to be on as PM gets there, or just before, as the danger filter does; any legal move if every one is
+    private MOVE rolloutMove(MOVE[] legalMoves, GameFast game, SplittableRandom random) {
+        GhostHorizon horizon = MyPacMan.horizon;
+        int step = game.getTotalTime() - MyPacMan.horizonTime + 1;
+        if (horizon == null || step < 1 || step > horizon.getHorizon()) {
+            return legalMoves[random.nextInt(legalMoves.length)];
+        }
+        MOVE chosen = null;
+        int safe = 0;
+        for (MOVE move : legalMoves) {
+            int next = game.getPacmanNeighbour(move);
+            if (Math.max(horizon.get(step, next), horizon.get(step - 1, next)) > MyPacMan.dangerThreshold) continue;
+            if (random.nextInt(++safe) == 0) chosen = move; //Each safe move ends up chosen with the same chance
+        }
+        return (chosen != null) ? chosen : legalMoves[random.nextInt(legalMoves.length)];
+    }
+
+    public void backPropagate(int node, double value, SearchContext context) {
+        int current = node;
+        while (parents[current] != NONE) {
+            visits.incrementAndGet(current);
+            addScore(current, value);
+            removeVirtualLoss(current);
+            current = parents[current];
+        }
+        visits.incrementAndGet(current);
+        removeVirtualLoss(current);
+        if (table != null) {
+            for (int i = 0; i < context.pathLength; i++) {
+                table.update(context.path[i], value);
+            }
+        }
+    }
+
+    //Returns NONE when every child has already been claimed by some worker
+    private int expand(int node, int first, int count, GameFast game, SearchContext context) {
+        SplittableRandom random = context.random;
+        int index;
+        do {
+            index = NONE;
+            double bestScore = -Double.MAX_VALUE;
+            for (int child = first; child < first + count; child++) {
+                if (claimed.get(child) == 0) { //Check that the child hasn't been expanded before
+                    double score = random.nextDouble();
+                    if (score > bestScore) {
+                        index = child;
+                        bestScore = score;
+                    }
+                }
+            }
+            if (index == NONE) return NONE;
+        } while (!tryClaim(index));
+        return expandClaimed(node, index, game);
+    }
+
+    //The virtual loss is added before the claim, so nobody ever selects a claimed child with no visits at all
+    private boolean tryClaim(int child) {
+        addVirtualLoss(child);
+        if (claimed.compareAndSet(child, 0, 1)) return true;
+        removeVirtualLoss(child);
+        return false;
+    }
+
+    //A tree searched by a single worker never has any, so its selection is plain UCT
+    private void addVirtualLoss(int node) {
+        if (shared) virtualLosses.incrementAndGet(node);
+    }
+
+    private void removeVirtualLoss(int node) {
+        if (shared) virtualLosses.decrementAndGet(node);
+    }
+
+    private int expandClaimed(int node, int child, GameFast game) {
+        game.advance(MOVES[moves[child]]);
+        pacmanIndices[child] = game.getPacmanCurrentNodeIndex();
+        if (parents[node] == NONE) { //This means it is the root node
+            allocateChildren(child, game.getAllLegalMoves());
+        } else { //If it's not the root, exclude backward movement
+            allocateChildren(child, game.getLegalMovesNotIncludingBackwards());
+        }
+        expandedChildren.incrementAndGet(node);
+        return child;
+    }
+
+    private int selectBestChild(int node, int first, int count) {
+        int parentVisits = visits.get(node) + virtualLosses.get(node);
+        int bestChild = NONE;
+        double bestScore = -Double.MAX_VALUE;
+        for (int child = first; child < first + count; child++) {
+            int childVisits = visits.get(child) + virtualLosses.get(child);
+            //The core of the selection
+            double score = (getScore(child) / childVisits) + Math.sqrt(2 * Math.log((parentVisits + 1) / childVisits));
+            if (score > bestScore) {
+                bestChild = child;
+                bestScore = score;
+            }
+        }
+        return bestChild;
+    }
+
+    //Same as selectBestChild, but when the table knows the state and every move out of it the statistics come
+    //from every path that reached them rather than this node's alone (virtual loss still comes from the nodes).
+    //Parent and children are counted from the same source, so no child has more visits than its parent
+    private int selectBestTransposition(int node, int first, int count, long state) {
+        int parentSlot = table.find(state);
+        boolean known = parentSlot != -1 && table.getVisits(parentSlot) > 0;
+        for (int child = first; known && child < first + count; child++) {
+            int slot = table.find(TranspositionTable.edge(state, moves[child]));
+            known = slot != -1 && table.getVisits(slot) > 0;
+        }
+        if (!known) return selectBestChild(node, first, count);
+        int parentVisits = table.getVisits(parentSlot) + virtualLosses.get(node);
+        int bestChild = NONE;
+        double bestScore = -Double.MAX_VALUE;
+        for (int child = first; child < first + count; child++) {
+            int slot = table.find(TranspositionTable.edge(state, moves[child]));
+            int childVisits;
+            double childScore;
+            if (slot != -1 && table.getVisits(slot) > 0) {
+                childVisits = table.getVisits(slot) + virtualLosses.get(child);
+                childScore = table.getScore(slot);
+            } else { //Replaced by another worker since the check
+                childVisits = visits.get(child) + virtualLosses.get(child);
+                childScore = getScore(child);
+            }
+            //Workers update the table without locks, so a child can still briefly overtake its parent
+            double score = (childScore / childVisits) + Math.sqrt(2 * Math.log(Math.max(1, (parentVisits + 1) / childVisits)));
+            if (score > bestScore) {
+                bestChild = child;
+                bestScore = score;
+            }
+        }
+        return (bestChild == NONE) ? first : bestChild;
+    }
+
+    private double calculateGameScore(GameFast game) {
+        return game.getScore() + game.getTotalTime() + (1000 * game.getCurrentLevel());
+    }
+
+    private void addScore(int node, double value) {
+        long current;
+        do {
+            current = scores.get(node);
+        } while (!scores.compareAndSet(node, current, Double.doubleToRawLongBits(Double.longBitsToDouble(current) + value)));
+    }
+
+    private double getScore(int node) {
+        return Double.longBitsToDouble(scores.get(node));
+    }
+
+
+    /* Other methods */
+
+    //The child of the node reached by move, NONE if it has none
+    int getChild(int node, MOVE move) {
+        int first = firstChildren.get(node);
+        if (first == NONE) return NONE;
+        for (int child = first; child < first + childCounts[node]; child++) {
+            if (moves[child] == move.ordinal()) return child;
+        }
+        return NONE;
+    }
+
+    int getDepth(int node) {
+        return depths[node];
+    }
+
+    int size() {
+        return Math.min(size.get(), capacity);
+    }
+
+    //Adds the score of every expanded child of the root to its move's entry (root parallelisation sums several trees).
+    //Reused roots may also hold the backwards move, so the results are indexed by move rather than by slot
+    void addRootScores(double[] scoreByMove, boolean[] expandedByMove) {
+        int first = firstChildren.get(0);
+        if (first == NONE) return;
+        for (int child = first; child < first + childCounts[0]; child++) {
+            if (claimed.get(child) == 0) continue;
+            scoreByMove[moves[child]] += getScore(child);
+            expandedByMove[moves[child]] = true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package entrants.pacman.mcmaximiano;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Visit and score statistics shared by every path of the tree that reaches the same game state.
+ *
+ * Entries are keyed by GameFast.hash() for states, and by the state's hash combined with a move for the
+ * edges out of it. The table has a fixed size; each key may live in either slot of a pair, and a new key
+ * takes an empty or out of date slot first, otherwise the one with fewer visits. Entries written before
+ * the tree was last started afresh count as empty, so starting a tree costs nothing; when the subtree of the
+ * move played is reused instead, its statistics in the table are kept along with it.
+ *
+ * Workers update it without locks: a race may drop an update or briefly mix the statistics of two keys,
+ * which only blurs numbers that are an estimate anyway.
+ */
+final class TranspositionTable {
+    private static final long[] MOVE_KEYS = new long[5];
+
+    static {
+        Random random = new Random(MOVE_KEYS.length);
+        for (int i = 0; i < MOVE_KEYS.length; i++) MOVE_KEYS[i] = random.nextLong();
+    }
+
+    private final int mask;
+    private final AtomicLongArray keys;
+    private final AtomicIntegerArray generations; //Decision each entry was last written in
+    private final AtomicIntegerArray visits;
+    private final AtomicLongArray scores; //Raw bits of doubles
+    private volatile int generation = 1;
+
+    //Rounds the size up to a power of two
+    TranspositionTable(int entries) {
+        int size = Integer.highestOneBit(Math.max(2, entries - 1)) << 1;
+        mask = size - 1;
+        keys = new AtomicLongArray(size);
+        generations = new AtomicIntegerArray(size);
+        visits = new AtomicIntegerArray(size);
+        scores = new AtomicLongArray(size);
+    }
+
+    static long edge(long state, int move) {
+        return state ^ MOVE_KEYS[move];
+    }
+
+    //Forgets every entry
+    void nextDecision() {
+        generation++;
+    }
+
+    //Returns the slot holding key in this decision, or -1
+    int find(long key) {
+        int slot = (int) key & mask & ~1;
+        if (isCurrent(slot, key)) return slot;
+        if (isCurrent(slot + 1, key)) return slot + 1;
+        return -1;
+    }
+
+    int getVisits(int slot) {
+        return visits.get(slot);
+    }
+
+    double getScore(int slot) {
+        return Double.longBitsToDouble(scores.get(slot));
+    }
+
+    void update(long key, double value) {
+        int slot = find(key);
+        if (slot == -1) slot = insert(key);
+        if (slot == -1) return; //Lost the slot to another worker
+        visits.incrementAndGet(slot);
+        long current;
+        do {
+            current = scores.get(slot);
+        } while (!scores.compareAndSet(slot, current, Double.doubleToRawLongBits(Double.longBitsToDouble(current) + value)));
+    }
+
+    private boolean isCurrent(int slot, long key) {
+        return keys.get(slot) == key && generations.get(slot) == generation;
+    }
+
+    private int insert(long key) {
+        int first = (int) key & mask & ~1;
+        int slot = (replacementValue(first) <= replacementValue(first + 1)) ? first : first + 1;
+        long old = keys.get(slot);
+        if (!keys.compareAndSet(slot, old, key)) return -1;
+        visits.set(slot, 0);
+        scores.set(slot, 0);
+        generations.set(slot, generation);
+        return slot;
+    }
+
+    //Entries from earlier decisions are worth nothing, otherwise the better sampled one is kept
+    private int replacementValue(int slot) {
+        return (generations.get(slot) == generation) ? visits.get(slot) : -1;
+    }
+}
@@ -8,15 +8,21 @@ import pacman.game.info.GameInfo;
 import pacman.game.internal.Ghost;
 import pacman.game.internal.Maze;
 import pacman.game.internal.PacMan;
-import prediction.GhostLocation;
+import prediction.GhostTracker;
 import prediction.PillModel;
+import prediction.fast.CompiledMaze;
+import prediction.fast.GhostPolicyTable;
 import prediction.fast.GhostPredictionsFast;
+import prediction.fast.ParticleGhostTracker;
+import prediction.fast.SegmentGraph;
+import prediction.fast.VisibilityCache;
+import stats.SearchStats;
+import stats.SearchStatsSink;
 
 import java.awt.*;
 import java.util.Arrays;
 import java.util.EnumMap;
-import java.util.Random;
-import java.util.List;
+import java.util.SplittableRandom;
 
 import static pacman.game.Constants.*;
 
@@ -26,13 +32,28 @@ import static pacman.game.Constants.*;
 public class InformationSetMCTSPacMan extends PacmanController implements Drawable {
     protected final int maxTreeDepth;
     protected final int maxRolloutDepth;
-    protected Random random = new Random();
-    private GhostPredictionsFast predictions;
+    protected SplittableRandom random = new SplittableRandom(); // Every random number the search uses, so a seed makes it repeatable
+    private GhostTracker predictions;
+    protected int particles = 0; // Per ghost for a ParticleGhostTracker, 0 to keep every node's probability in a GhostPredictionsFast
+    private VisibilityCache visibility; // What Ms. Pac-Man can see from each node of the current maze
     private PillModel pillModel;
     private Maze currentMaze;
     private Game mostRecentGame;
     private Color[] redAlphas;
     private int[] ghostEdibleTime;
+    private final int[] ghostIndices = new int[GHOST.values().length]; // Each determinisation's ghosts, sampled into these
+    private final int[] ghostMoves = new int[GHOST.values().length];
+    protected int determinisations = 0; // Sampled once per tick and copied by every iteration, 0 to sample every iteration
+    protected int refreshInterval = 32; // Iterations between resampling one of them, 0 to keep them all tick long
+    private Game[] pool = new Game[0];
+    private final SearchStats stats = new SearchStats(); // Of the last decision
+    private SearchStatsSink statsSink;
+    private ISTree tree;
+    private ISTree spareTree; // The subtree kept for the next decision is copied into this one, then they swap
+    protected boolean reuseTree = false; // Keep the subtree below the move played for the next decision
+    private boolean treeValid; // Whether the tree still describes the future, so part of it can be kept
+    private MOVE lastMovePlayed;
+    private int lastLevel;
     public InformationSetMCTSPacMan() {
         maxTreeDepth = 50;
         maxRolloutDepth = 300;
@@ -51,13 +72,47 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
         this.maxRolloutDepth = maxRolloutDepth;
     }
 
+    public InformationSetMCTSPacMan setDeterminisations(int determinisations) {
+        this.determinisations = Math.max(0, determinisations);
+        return this;
+    }
+
+    public InformationSetMCTSPacMan setRefreshInterval(int refreshInterval) {
+        this.refreshInterval = Math.max(0, refreshInterval);
+        return this;
+    }
+
+    public InformationSetMCTSPacMan setReuseTree(boolean reuseTree) {
+        this.reuseTree = reuseTree;
+        return this;
+    }
+
+    // Takes effect from the next tick, with nothing known about the ghosts
+    public InformationSetMCTSPacMan setParticles(int particles) {
+        this.particles = Math.max(0, particles);
+        predictions = null;
+        return this;
+    }
+
+    public InformationSetMCTSPacMan setSeed(long seed) {
+        random = new SplittableRandom(seed);
+        return this;
+    }
+
+    public InformationSetMCTSPacMan setStatsSink(SearchStatsSink statsSink) {
+        this.statsSink = statsSink;
+        return this;
+    }
+
     @SuppressWarnings("Duplicates")
     @Override
     public MOVE getMove(Game game, long timeDue) {
         if(currentMaze != game.getCurrentMaze()){
             currentMaze = game.getCurrentMaze();
+            visibility = new VisibilityCache(currentMaze);
             predictions = null;
             pillModel = null;
+            treeValid = false;
             System.out.println("New Maze");
             Arrays.fill(ghostEdibleTime, -1);
         }
@@ -68,8 +123,16 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
             predictions = null;
         }
 
+        // A death or a new level invalidates whatever the tree predicted
+        if (game.wasPacManEaten() || game.getCurrentLevel() != lastLevel) {
+            treeValid = false;
+        }
+        lastLevel = game.getCurrentLevel();
+
         if (predictions == null) {
-            predictions = new GhostPredictionsFast(game.getCurrentMaze());
+            predictions = (particles > 0)
+                    ? new ParticleGhostTracker(game.getCurrentMaze(), particles, random.split())
+                    : new GhostPredictionsFast(game.getCurrentMaze());
             predictions.preallocate();
         }
         if (pillModel == null) {
@@ -91,6 +154,7 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
         }
 
         // Get observations of ghosts and pass them in to the predictor
+        long[] visible = visibility.getVisible(game);
         for (GHOST ghost : GHOST.values()) {
             if (ghostEdibleTime[ghost.ordinal()] != -1) {
                 ghostEdibleTime[ghost.ordinal()]--;
@@ -98,37 +162,78 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
 
             int ghostIndex = game.getGhostCurrentNodeIndex(ghost);
             if (ghostIndex != -1) {
-                predictions.observe(ghost, ghostIndex, game.getGhostLastMoveMade(ghost));
+                predictions.observe(ghost, ghostIndex, game.getGhostLastMoveMade(ghost), game.getGhostEdibleTime(ghost));
                 ghostEdibleTime[ghost.ordinal()] = game.getGhostEdibleTime(ghost);
             } else {
-                List<GhostLocation> locations = predictions.getGhostLocations(ghost);
-                locations.stream().filter(location -> game.isNodeObservable(location.getIndex())).forEach(location -> {
-                    predictions.observeNotPresent(ghost, location.getIndex());
-                });
+                predictions.observeNotPresent(ghost, visible);
             }
         }
 
-        ISNode root = new ISNode(this, game);
+        if (tree == null) {
+            tree = new ISTree(this);
+            spareTree = new ISTree(this);
+        }
+        if (reuseTree && treeValid && spareTree.promote(tree, lastMovePlayed, game)) {
+            ISTree promoted = spareTree;
+            spareTree = tree;
+            tree = promoted;
+        } else {
+            tree.reset(game);
+        }
+        treeValid = true;
+
+        // Determinise and form the game states once, each iteration then only copies one
+        long searchStart = System.nanoTime();
+        stats.reset();
+        stats.setDecision(game.getMazeIndex(), game.getCurrentLevel(), game.getTotalTime());
+        if (pool.length != determinisations) pool = new Game[determinisations];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = obtainDeterminisedState(game);
+        }
+        long start = System.nanoTime();
+        stats.addDeterminisation(start - searchStart);
+        int iterations = 0;
         while (System.currentTimeMillis() < timeDue) {
-            // Determinise and form a game state!
-            Game copy = obtainDeterminisedState(game);
-            ISNode travel = root.select(copy);
-            double score = travel.rollout(copy);
-            travel.updateValues(score);
+            Game copy;
+            if (pool.length == 0) {
+                copy = obtainDeterminisedState(game);
+            } else {
+                int slot = iterations % pool.length;
+                if (refreshInterval > 0 && iterations > 0 && iterations % refreshInterval == 0) {
+                    pool[slot] = obtainDeterminisedState(game);
+                }
+                copy = pool[slot].copy();
+            }
+            long selectionStart = System.nanoTime();
+            stats.addDeterminisation(selectionStart - start);
+            int travel = tree.select(copy);
+            long rolloutStart = System.nanoTime();
+            stats.addSelection(rolloutStart - selectionStart);
+            double score = tree.rollout(travel, copy);
+            long updateStart = System.nanoTime();
+            stats.addPlayout(updateStart - rolloutStart);
+            tree.updateValues(travel, score);
+            start = System.nanoTime();
+            stats.addBackPropagation(start - updateStart);
+            stats.addIteration(tree.getDepth(travel));
+            iterations++;
         }
+        stats.setTreeSize(tree.size());
+        stats.setElapsedNanos(System.nanoTime() - searchStart);
+        if (statsSink != null) statsSink.record(stats);
         predictions.update();
-        return root.selectBestMove();
+        lastMovePlayed = tree.selectBestMove();
+        return lastMovePlayed;
     }
 
     private Game obtainDeterminisedState(Game game) {
         GameInfo info = game.getPopulatedGameInfo();
         info.setPacman(new PacMan(game.getPacmanCurrentNodeIndex(), game.getPacmanLastMoveMade(), 0, false));
-        EnumMap<GHOST, GhostLocation> locations = predictions.sampleLocations();
+        predictions.sampleLocations(random, ghostIndices, ghostMoves);
         info.fixGhosts(ghost -> {
-            GhostLocation location = locations.get(ghost);
-            if (location != null) {
+            if (ghostIndices[ghost.ordinal()] != -1) {
                 int edibleTime = ghostEdibleTime[ghost.ordinal()];
-                return new Ghost(ghost, location.getIndex(), edibleTime, 0, location.getLastMoveMade());
+                return new Ghost(ghost, ghostIndices[ghost.ordinal()], edibleTime, 0, MOVE.values()[ghostMoves[ghost.ordinal()]]);
             } else {
                 return new Ghost(ghost, game.getGhostInitialNodeIndex(), 0, 0, MOVE.NEUTRAL);
             }
@@ -140,6 +245,10 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
         return game.getGameFromInfo(info);
     }
 
+    public SearchStats getStats() {
+        return stats;
+    }
+
     @Override
     public boolean enabled() {
         return true;
@@ -163,44 +272,169 @@ public class InformationSetMCTSPacMan extends PacmanController implements Drawab
     }
 }
 
-class ISNode {
+/**
+ * The search tree as parallel arrays: slot 0 is the root and the children of a node are adjacent slots,
+ * one per legal move, allocated when the node is expanded. The arrays grow as needed and are reused
+ * from one decision to the next.
+ */
+class ISTree {
+    private static final int NONE = -1;
+    private static final MOVE[] MOVES = MOVE.values();
 
     private final InformationSetMCTSPacMan informationSetMCTSPacMan;
-    private ISNode parent;
-    private MOVE moveToThisState;
-    private ISNode[] children;
-    private MOVE[] legalMoves;
-    private int childrenExpandedSoFar;
+    private int size;
+
+    private int[] parents;
+    private byte[] moves;
+    private int[] depths;
+    private int[] pacmanIndices; // Where Ms. Pac-Man was when the node was expanded
+    private int[] firstChildren; // NONE until expanded
+    private byte[] childCounts;
+    private byte[] childrenExpandedSoFar;
+    private boolean[] expanded;
+    private int[] visits;
+    private double[] scores;
+
+    private int[] copyQueue = new int[0];
+
+    public ISTree(InformationSetMCTSPacMan informationSetMCTSPacMan) {
+        this.informationSetMCTSPacMan = informationSetMCTSPacMan;
+        allocate(1024);
+    }
 
-    private int visits;
-    private double score;
-    private int treeDepth;
+    private void allocate(int capacity) {
+        parents = new int[capacity];
+        moves = new byte[capacity];
+        depths = new int[capacity];
+        pacmanIndices = new int[capacity];
+        firstChildren = new int[capacity];
+        childCounts = new byte[capacity];
+        childrenExpandedSoFar = new byte[capacity];
+        expanded = new boolean[capacity];
+        visits = new int[capacity];
+        scores = new double[capacity];
+    }
 
-    public ISNode(InformationSetMCTSPacMan informationSetMCTSPacMan, Game game) {
-        this.informationSetMCTSPacMan = informationSetMCTSPacMan;
-        treeDepth = 0;
-        this.legalMoves = getLegalMovesNotIncludingBackwards(game);
-        this.children = new ISNode[legalMoves.length];
-    }
-
-    public ISNode(ISNode parent, MOVE moveToThisState, MOVE[] legalMoves) {
-        this.informationSetMCTSPacMan = parent.informationSetMCTSPacMan;
-        this.parent = parent;
-        this.treeDepth = parent.treeDepth + 1;
-        this.moveToThisState = moveToThisState;
-        this.legalMoves = legalMoves;
-        this.children = new ISNode[legalMoves.length];
-    }
-
-    public ISNode select(Game game) {
-        ISNode current = this;
-        while (current.treeDepth < informationSetMCTSPacMan.maxTreeDepth && !game.gameOver()) {
-            if (current.isFullyExpanded()) {
-                current = current.selectBestChild();
-                advanceGame(game, current.moveToThisState);
+    private void ensureCapacity(int capacity) {
+        if (capacity <= parents.length) return;
+        int length = Math.max(capacity, parents.length * 2);
+        parents = Arrays.copyOf(parents, length);
+        moves = Arrays.copyOf(moves, length);
+        depths = Arrays.copyOf(depths, length);
+        pacmanIndices = Arrays.copyOf(pacmanIndices, length);
+        firstChildren = Arrays.copyOf(firstChildren, length);
+        childCounts = Arrays.copyOf(childCounts, length);
+        childrenExpandedSoFar = Arrays.copyOf(childrenExpandedSoFar, length);
+        expanded = Arrays.copyOf(expanded, length);
+        visits = Arrays.copyOf(visits, length);
+        scores = Arrays.copyOf(scores, length);
+    }
+
+    /**
+     * Empties the tree and starts it again from where Ms. Pac-Man is now
+     */
+    public void reset(Game game) {
+        size = 1;
+        clearSlot(0, NONE, MOVE.NEUTRAL.ordinal(), 0);
+        expanded[0] = true;
+        pacmanIndices[0] = game.getPacmanCurrentNodeIndex();
+        allocateChildren(0, getLegalMovesNotIncludingBackwards(game));
+    }
+
+    /**
+     * Makes the child reached by the move played last tick the root, copying its subtree out of the old tree
+     *
+     * @param previous The tree searched last tick
+     * @param movePlayed The move returned last tick
+     * @param game The current game
+     * @return False if Ms. Pac-Man isn't where that child expected her to be
+     */
+    public boolean promote(ISTree previous, MOVE movePlayed, Game game) {
+        if (movePlayed == null || game.getPacmanLastMoveMade() != movePlayed) return false;
+        int first = previous.firstChildren[0];
+        for (int child = first; child < first + previous.childCounts[0]; child++) {
+            if (previous.expanded[child] && previous.moves[child] == movePlayed.ordinal()
+                    && previous.pacmanIndices[child] == game.getPacmanCurrentNodeIndex()) {
+                copySubtree(previous, child);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Breadth first, so that each block of children stays contiguous
+    private void copySubtree(ISTree from, int source) {
+        int depthShift = from.depths[source];
+        ensureCapacity(from.size);
+        if (copyQueue.length < from.size * 2) copyQueue = new int[from.size * 2];
+        size = 1;
+        copySlot(from, source, 0, NONE, depthShift);
+        int head = 0;
+        int tail = 0;
+        copyQueue[tail++] = source;
+        copyQueue[tail++] = 0;
+        while (head < tail) {
+            int oldSlot = copyQueue[head++];
+            int newSlot = copyQueue[head++];
+            int first = from.firstChildren[oldSlot];
+            if (first == NONE) continue;
+            int count = from.childCounts[oldSlot];
+            int block = size;
+            size += count;
+            for (int i = 0; i < count; i++) {
+                copySlot(from, first + i, block + i, newSlot, depthShift);
+                if (from.expanded[first + i]) {
+                    copyQueue[tail++] = first + i;
+                    copyQueue[tail++] = block + i;
+                }
+            }
+            firstChildren[newSlot] = block;
+            childCounts[newSlot] = (byte) count;
+        }
+    }
+
+    private void copySlot(ISTree from, int oldSlot, int newSlot, int parent, int depthShift) {
+        clearSlot(newSlot, parent, from.moves[oldSlot], from.depths[oldSlot] - depthShift);
+        pacmanIndices[newSlot] = from.pacmanIndices[oldSlot];
+        childrenExpandedSoFar[newSlot] = from.childrenExpandedSoFar[oldSlot];
+        expanded[newSlot] = from.expanded[oldSlot];
+        visits[newSlot] = from.visits[oldSlot];
+        scores[newSlot] = from.scores[oldSlot];
+    }
+
+    private void clearSlot(int slot, int parent, int move, int depth) {
+        parents[slot] = parent;
+        moves[slot] = (byte) move;
+        depths[slot] = depth;
+        pacmanIndices[slot] = NONE;
+        firstChildren[slot] = NONE;
+        childCounts[slot] = 0;
+        childrenExpandedSoFar[slot] = 0;
+        expanded[slot] = false;
+        visits[slot] = 0;
+        scores[slot] = 0;
+    }
+
+    private void allocateChildren(int node, MOVE[] childMoves) {
+        ensureCapacity(size + childMoves.length);
+        int block = size;
+        size += childMoves.length;
+        for (int i = 0; i < childMoves.length; i++) {
+            clearSlot(block + i, node, childMoves[i].ordinal(), depths[node] + 1);
+        }
+        firstChildren[node] = block;
+        childCounts[node] = (byte) childMoves.length;
+    }
+
+    public int select(Game game) {
+        int current = 0;
+        while (depths[current] < informationSetMCTSPacMan.maxTreeDepth && !game.gameOver()) {
+            if (isFullyExpanded(current)) {
+                current = selectBestChild(current);
+                advanceGame(game, MOVES[moves[current]]);
             } else {
-                current = current.expand(game);
-                advanceGame(game, current.moveToThisState);
+                current = expand(current, game);
+                advanceGame(game, MOVES[moves[current]]);
                 return current;
             }
         }
@@ -212,15 +446,29 @@ class ISNode {
 //        game.advanceGameWithoutReverse(move, getBasicGhostMoves(game));
     }
 
-    public double rollout(Game game) {
-        int rolloutDepth = treeDepth;
-        Random random = informationSetMCTSPacMan.random;
+    // Ms. Pac-Man only gets a choice at junctions, so each random move is played down its whole corridor
+    // using the moves the corridor forces, without asking for the legal moves at every node
+    public double rollout(int node, Game game) {
+        int rolloutDepth = depths[node];
+        SplittableRandom random = informationSetMCTSPacMan.random;
+        SegmentGraph segments = SegmentGraph.forMaze(game.getCurrentMaze());
         while (rolloutDepth < informationSetMCTSPacMan.maxRolloutDepth) {
             if (game.gameOver()) break;
             MOVE[] legalMoves = getLegalMovesNotIncludingBackwards(game);
             MOVE randomMove = legalMoves[random.nextInt(legalMoves.length)];
-            advanceGame(game, randomMove);
-            rolloutDepth++;
+            int segment = segments.getSegment(game.getPacmanCurrentNodeIndex(), randomMove.ordinal());
+            if (segment == -1) {
+                advanceGame(game, randomMove);
+                rolloutDepth++;
+                continue;
+            }
+            int offset = segments.getOffset(game.getPacmanCurrentNodeIndex(), randomMove.ordinal());
+            int steps = Math.min(segments.getLength(segment) - offset, informationSetMCTSPacMan.maxRolloutDepth - rolloutDepth);
+            for (int step = offset; step < offset + steps; step++) {
+                advanceGame(game, MOVES[segments.getMove(segment, step)]);
+                rolloutDepth++;
+                if (game.gameOver() || game.wasPacManEaten()) break;
+            }
         }
         return calculateHeuristic(game);
     }
@@ -229,44 +477,47 @@ class ISNode {
         return game.getScore() + game.getTotalTime() + (1000 * game.getCurrentLevel());
     }
 
-    public void updateValues(double value) {
-        ISNode current = this;
-        while (current.parent != null) {
-            current.visits++;
-            current.score += value;
-            current = current.parent;
+    public void updateValues(int node, double value) {
+        int current = node;
+        while (parents[current] != NONE) {
+            visits[current]++;
+            scores[current] += value;
+            current = parents[current];
         }
         // Root node
-        current.visits++;
+        visits[current]++;
     }
 
-    public ISNode expand(Game game) {
+    public int expand(int node, Game game) {
         // Select random unselected child
         int index = -1;
         double bestScore = -Double.MAX_VALUE;
-        for (int i = 0; i < children.length; i++) {
-            if (children[i] == null) {
+        int first = firstChildren[node];
+        for (int child = first; child < first + childCounts[node]; child++) {
+            if (!expanded[child]) {
                 double score = informationSetMCTSPacMan.random.nextDouble();
                 if (score > bestScore) {
-                    index = i;
+                    index = child;
                     bestScore = score;
                 }
             }
         }
-        childrenExpandedSoFar++;
+        childrenExpandedSoFar[node]++;
 
-        advanceGame(game, legalMoves[index]);
-        MOVE[] childMoves = (isRoot()) ? getAllLegalMoves(game) : getLegalMovesNotIncludingBackwards(game);
-        ISNode child = new ISNode(this, legalMoves[index], childMoves);
-        children[index] = child;
-        return child;
+        advanceGame(game, MOVES[moves[index]]);
+        expanded[index] = true;
+        pacmanIndices[index] = game.getPacmanCurrentNodeIndex();
+        allocateChildren(index, (parents[node] == NONE) ? getAllLegalMoves(game) : getLegalMovesNotIncludingBackwards(game));
+        return index;
     }
 
-    public ISNode selectBestChild() {
-        ISNode bestChild = null;
+    public int selectBestChild(int node) {
+        int bestChild = NONE;
         double bestScore = -Double.MAX_VALUE;
-        for (ISNode child : children) {
-            double score = child.calculateChild();
+        int parentVisits = visits[node];
+        int first = firstChildren[node];
+        for (int child = first; child < first + childCounts[node]; child++) {
+            double score = (scores[child] / visits[child]) + Math.sqrt(2 * Math.log((parentVisits + 1) / visits[child]));
             if (score > bestScore) {
                 bestChild = child;
                 bestScore = score;
@@ -276,47 +527,33 @@ class ISNode {
     }
 
     public MOVE selectBestMove() {
-        ISNode bestChild = null;
+        int bestChild = NONE;
         double bestScore = -Double.MAX_VALUE;
-        for (ISNode child : children) {
-            if (child == null) continue;
-            double score = child.score;
-            if (score > bestScore) {
+        int first = firstChildren[0];
+        for (int child = first; child < first + childCounts[0]; child++) {
+            if (!expanded[child]) continue;
+            if (scores[child] > bestScore) {
                 bestChild = child;
-                bestScore = score;
+                bestScore = scores[child];
             }
         }
-        return bestChild == null ? MOVE.NEUTRAL : bestChild.moveToThisState;
-    }
-
-    public boolean isRoot() {
-        return parent == null;
-    }
-
-    private boolean isFullyExpanded() {
-        return children != null && childrenExpandedSoFar == children.length;
+        return bestChild == NONE ? MOVE.NEUTRAL : MOVES[moves[bestChild]];
     }
 
-    private double calculateChild() {
-        return (score / visits) + Math.sqrt(2 * Math.log((parent.visits + 1) / visits));
+    private boolean isFullyExpanded(int node) {
+        return childrenExpandedSoFar[node] == childCounts[node];
     }
 
-    // Send all the ghosts towards Ms. Pac-Man
+    // Send all the ghosts towards Ms. Pac-Man (away while edible), looked up rather than path searched
     protected EnumMap<GHOST, MOVE> getBasicGhostMoves(Game game) {
         EnumMap<GHOST, MOVE> moves = new EnumMap<>(GHOST.class);
+        GhostPolicyTable policy = GhostPolicyTable.forMaze(game.getCurrentMaze());
         int pacmanLocation = game.getPacmanCurrentNodeIndex();
         for (GHOST ghost : GHOST.values()) {
             int index = game.getGhostCurrentNodeIndex(ghost);
             MOVE previousMove = game.getGhostLastMoveMade(ghost);
-            if (game.isJunction(index)) {
-                try {
-                    MOVE move = (game.isGhostEdible(ghost))
-                            ? game.getApproximateNextMoveAwayFromTarget(index, pacmanLocation, previousMove, DM.PATH)
-                            : game.getNextMoveTowardsTarget(index, pacmanLocation, previousMove, DM.PATH);
-                    moves.put(ghost, move);
-                }catch(NullPointerException npe){
-                    System.err.println("PacmanLocation: " + pacmanLocation + " Maze Index: " + game.getMazeIndex() + " Last Move: " + previousMove);
-                }
+            if (policy.isJunction(index)) {
+                moves.put(ghost, policy.getMove(index, previousMove, pacmanLocation, game.isGhostEdible(ghost)));
             } else {
                 moves.put(ghost, previousMove);
             }
@@ -326,7 +563,8 @@ class ISNode {
 
     protected EnumMap<GHOST, MOVE> getRandomGhostMoves(Game game) {
         EnumMap<GHOST, MOVE> moves = new EnumMap<>(GHOST.class);
-        Random random = informationSetMCTSPacMan.random;
+        SplittableRandom random = informationSetMCTSPacMan.random;
+        CompiledMaze graph = CompiledMaze.forMaze(game.getCurrentMaze());
         for (GHOST ghost : GHOST.values()) {
             int index = game.getGhostCurrentNodeIndex(ghost);
             MOVE previousMove = game.getGhostLastMoveMade(ghost);
@@ -334,14 +572,8 @@ class ISNode {
                 System.out.println("Problem");
             }
             // Get allowed moves from there
-            MOVE[] possibleMoves;
-            if (previousMove != MOVE.NEUTRAL) {
-                possibleMoves = game.getCurrentMaze().graph[index].allPossibleMoves.get(previousMove);
-            } else {
-                possibleMoves = new MOVE[game.getCurrentMaze().graph[index].neighbourhood.keySet().size()];
-                possibleMoves = game.getCurrentMaze().graph[index].neighbourhood.keySet().toArray(possibleMoves);
-            }
-            if (possibleMoves == null || possibleMoves.length == 0) {
+            MOVE[] possibleMoves = graph.getPossibleMoves(index, previousMove.ordinal());
+            if (possibleMoves.length == 0) {
                 moves.put(ghost, MOVE.NEUTRAL);
             } else {
                 moves.put(ghost, possibleMoves[random.nextInt(possibleMoves.length)]);
@@ -351,27 +583,33 @@ class ISNode {
     }
 
     protected MOVE[] getLegalMovesNotIncludingBackwards(Game game) {
-        return game.getCurrentMaze().graph[game.getPacmanCurrentNodeIndex()].allPossibleMoves.get(game.getPacmanLastMoveMade());
+        return CompiledMaze.forMaze(game.getCurrentMaze()).getPossibleMoves(game.getPacmanCurrentNodeIndex(), game.getPacmanLastMoveMade().ordinal());
     }
 
     protected MOVE[] getAllLegalMoves(Game game) {
-        Maze maze = game.getCurrentMaze();
-        int index = game.getPacmanCurrentNodeIndex();
-        return maze.graph[index].neighbourhood.keySet().toArray(new MOVE[maze.graph[index].neighbourhood.keySet().size()]);
+        return CompiledMaze.forMaze(game.getCurrentMaze()).getAllMoves(game.getPacmanCurrentNodeIndex());
     }
 
-    public void printChildren() {
-        if (children == null) return;
+    public void printChildren(int node) {
+        if (firstChildren[node] == NONE) return;
         System.out.println("Children: ");
-        for (ISNode child : children) {
-            if (child != null) {
-                System.out.println("\tMove: " + child.moveToThisState + "Visits: " + child.visits + " Score: " + child.score);
+        for (int child = firstChildren[node]; child < firstChildren[node] + childCounts[node]; child++) {
+            if (expanded[child]) {
+                System.out.println("\tMove: " + MOVES[moves[child]] + "Visits: " + visits[child] + " Score: " + scores[child]);
             }
         }
     }
 
-    public int getVisits() {
-        return visits;
+    public int getVisits(int node) {
+        return visits[node];
+    }
+
+    public int getDepth(int node) {
+        return depths[node];
+    }
+
+    public int size() {
+        return size;
     }
 }
 
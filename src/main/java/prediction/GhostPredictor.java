@@ -3,6 +3,7 @@ package prediction;
 import pacman.game.Constants.GHOST;
 import pacman.game.Constants.MOVE;
 import pacman.game.internal.Maze;
+import prediction.fast.CompactGhostPredictions;
 import prediction.fast.GhostPredictionsFast;
 
 import java.util.ArrayList;
@@ -17,8 +18,18 @@ import java.util.List;
  */
 public class GhostPredictor {
 
-    private List<GhostPredictionsFast> ghostPredictions = new ArrayList<>();
+    private List<GhostTracker> ghostPredictions = new ArrayList<>();
     private boolean observationMade = false;
+    private boolean compact = false;
+
+    /**
+     * Keeps every depth in a CompactGhostPredictions, whose copies share their arrays until they change, so
+     * each depth costs an update and no copy. Takes effect from the next clear.
+     */
+    public GhostPredictor setCompact(boolean compact) {
+        this.compact = compact;
+        return this;
+    }
 
     /**
      * Clears the current predictions and starts afresh including a possible new maze
@@ -26,7 +37,7 @@ public class GhostPredictor {
      */
     public void clear(Maze maze){
         ghostPredictions.clear();
-        ghostPredictions.add(new GhostPredictionsFast(maze));
+        ghostPredictions.add(compact ? new CompactGhostPredictions(maze) : new GhostPredictionsFast(maze));
     }
 
     public void addObservation(GHOST ghost, int ghostIndex, MOVE lastMoveMade){
@@ -44,7 +55,7 @@ public class GhostPredictor {
     public void observationsFinished(){
         if(observationMade){
             // Save the first one - it contains the observations that are new
-            GhostPredictionsFast first = ghostPredictions.get(0);
+            GhostTracker first = ghostPredictions.get(0);
             ghostPredictions.clear();
             ghostPredictions.add(first);
         }
@@ -74,7 +85,7 @@ public class GhostPredictor {
         if(ghostPredictions.isEmpty()) return 0.0d;
         if(ghostPredictions.size() <= depth){
             for(int i = ghostPredictions.size(); i <= depth; i++){
-                GhostPredictionsFast temp = ghostPredictions.get(i - 1).copy();
+                GhostTracker temp = ghostPredictions.get(i - 1).copy();
                 temp.update();
                 ghostPredictions.add(temp);
             }
@@ -0,0 +1,75 @@
+package prediction;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * A belief over where the ghosts are that the controllers can be given, so that trackers can be swapped and
+ * compared on what they cost against how well they predict.
+ *
+ * Nodes are the maze's indices. Sets of visible nodes are bitsets, bit i of word i / 64 for node i, as
+ * VisibilityCache gives them.
+ */
+public interface GhostTracker {
+    // Every ghost anywhere, for when nothing has been seen yet
+    void preallocate();
+
+    void observe(GHOST ghost, int index, MOVE lastMoveMade);
+
+    // For trackers that follow how long a ghost stays edible; the rest ignore it
+    default void observe(GHOST ghost, int index, MOVE lastMoveMade, int edibleTime) {
+        observe(ghost, index, lastMoveMade);
+    }
+
+    void observeNotPresent(GHOST ghost, int index);
+
+    void observeNotPresent(GHOST ghost, long[] visible);
+
+    // Moves the belief on by one tick
+    void update();
+
+    // The same as update(), with pool to spread the work over if the tracker can
+    default void update(ExecutorService pool) {
+        update();
+    }
+
+    // The chance of any ghost on index
+    double calculate(int index);
+
+    EnumMap<GHOST, GhostLocation> sampleLocations();
+
+    // One location per ghost that has a belief, drawn with random only
+    EnumMap<GHOST, GhostLocation> sampleLocations(SplittableRandom random);
+
+    // The same draw without allocating: the node of each ghost by ordinal goes in indices, -1 if it has no belief,
+    // and the move it came in by in moves, as an ordinal
+    void sampleLocations(SplittableRandom random, int[] indices, int[] moves);
+
+    GhostTracker copy();
+
+    // The same as copy(), written over reuse instead if it is a tracker this one can be copied into without
+    // allocating; returns whichever holds the copy
+    default GhostTracker copy(GhostTracker reuse) {
+        return copy();
+    }
+
+    List<GhostLocation> getGhostLocations(GHOST ghost);
+
+    List<GhostLocation> getGhostLocations();
+
+    // Visits the nodes ghost may be on, in the same order as getGhostLocations, with nothing allocated
+    void forEachLocation(GHOST ghost, LocationVisitor visitor);
+
+    // Fills the arrays, which need room for every node, with what getGhostLocations would list; returns how many
+    int copyLocations(GHOST ghost, int[] indices, int[] moves, double[] probabilities);
+
+    interface LocationVisitor {
+        // move is an ordinal
+        void visit(int index, int move, double probability);
+    }
+}
@@ -2,7 +2,7 @@ package prediction;
 
 import pacman.game.Constants;
 import pacman.game.internal.Maze;
-import pacman.game.internal.Node;
+import prediction.fast.CompiledMaze;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -15,10 +15,12 @@ public class IndividualLocations {
 
     private List<GhostLocation> ghostLocations = new ArrayList<>();
     private Maze maze;
+    private CompiledMaze graph;
     private List<GhostLocation> newLocations = new ArrayList<>();
 
     public IndividualLocations(Maze maze) {
         this.maze = maze;
+        graph = CompiledMaze.forMaze(maze);
     }
 
     public void observe(int index, Constants.MOVE lastMoveMade) {
@@ -52,23 +54,24 @@ public class IndividualLocations {
 
         while (itr.hasNext()) {
             GhostLocation location = itr.next();
-            Node currentNode = maze.graph[location.getIndex()];
+            int currentNode = location.getIndex();
 
-            int numberNodes = currentNode.numNeighbouringNodes;
+            int numberNodes = graph.getNeighbourCount(currentNode);
             double probability = location.getProbability() / (numberNodes - 1);
             boolean hasReusedLocation = false;
 
             Constants.MOVE back = location.getLastMoveMade().opposite();
             for (Constants.MOVE move : Constants.MOVE.values()) {
                 if (move.equals(back)) continue;
-                if (currentNode.neighbourhood.containsKey(move)) {
+                int neighbour = graph.getNeighbour(currentNode, move.ordinal());
+                if (neighbour != -1) {
                     if (!hasReusedLocation) {
-                        location.setIndex(currentNode.neighbourhood.get(move));
+                        location.setIndex(neighbour);
                         location.setLastMoveMade(move);
                         location.setProbability(probability);
                         hasReusedLocation = true;
                     } else {
-                        newLocations.add(new GhostLocation(currentNode.neighbourhood.get(move), move, probability));
+                        newLocations.add(new GhostLocation(neighbour, move, probability));
                     }
                 }
             }
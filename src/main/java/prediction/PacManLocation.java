@@ -2,6 +2,7 @@ package prediction;
 
 import pacman.game.Constants;
 import pacman.game.internal.Maze;
+import prediction.fast.CompiledMaze;
 
 /**
  * Created by Piers on 27/06/2016.
@@ -10,31 +11,33 @@ public class PacManLocation {
     private int index;
     private Constants.MOVE lastMoveMade;
     private Maze maze;
+    private CompiledMaze graph;
 
     public PacManLocation(int index, Constants.MOVE lastMoveMade, Maze maze) {
         this.index = index;
         this.lastMoveMade = lastMoveMade;
         this.maze = maze;
+        this.graph = CompiledMaze.forMaze(maze);
     }
 
     // Returns all possible moves except the opposite of the last move made.
     public Constants.MOVE[] possibleMoves() {
-        return maze.graph[index].allPossibleMoves.get(lastMoveMade);
+        return graph.getPossibleMoves(index, lastMoveMade.ordinal());
     }
 
     public Constants.MOVE[] allPossibleMovesIncludingBackwards() {
-        return maze.graph[index].neighbourhood.keySet().toArray(new Constants.MOVE[maze.graph[index].neighbourhood.keySet().size()]);
+        return graph.getAllMoves(index).clone();
     }
 
     public void update(Constants.MOVE move) {
         if(isPossible(move)) {
-            index = maze.graph[index].neighbourhood.get(move);
+            index = graph.getNeighbour(index, move.ordinal());
             lastMoveMade = move;
         }
     }
 
     public boolean isPossible(Constants.MOVE move) {
-        return maze.graph[index].neighbourhood.containsKey(move);
+        return graph.getNeighbour(index, move.ordinal()) != -1;
     }
 
     public PacManLocation copy() {
@@ -0,0 +1,383 @@
+package prediction.fast;
+
+import pacman.game.internal.Maze;
+import prediction.GhostLocation;
+import prediction.GhostTracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * The same beliefs as GhostPredictionsFast, held in half the memory or less: float probabilities and byte move
+ * ordinals in one array each, every ghost's slice one after the other.
+ *
+ * copy() shares both arrays with the copy, and whichever of them writes first takes its own copy of them, so a
+ * snapshot costs nothing until it changes. The arrays count the trackers holding them, and copying only adds one
+ * to that count, so the tracker copied from is never written to. update always writes into arrays of its own, so copying then updating,
+ * as GhostPredictor does for each depth, never copies at all. Snapshots of a tracker that nobody is writing to can
+ * be taken and read from any number of threads.
+ *
+ * Probabilities are floats, so results can differ from GhostPredictionsFast in the last few digits, and every
+ * ghost is scanned in full rather than kept in a list of the nodes it may be on.
+ */
+public class CompactGhostPredictions implements GhostTracker {
+    private static final int numGhosts = GHOST.values().length;
+    private static final MOVE[] MOVES = MOVE.values();
+    private static final byte NEUTRAL = (byte) MOVE.NEUTRAL.ordinal();
+    private static final byte NONE = -1;
+    private static final float THRESHOLD = 1 / 256.0f;
+    // For callers that don't bring their own generator
+    private static final ThreadLocal<SplittableRandom> RANDOMS = ThreadLocal.withInitial(SplittableRandom::new);
+
+    private final Maze maze;
+    private final CompiledMaze graph;
+    private final int mazeSize;
+    // First mazeSize indices are for ghost ordinal 0 etc, as in GhostPredictionsFast
+    private Beliefs beliefs;
+    // Those of beliefs, kept here as they are read everywhere
+    private float[] probabilities;
+    private byte[] moves; // NONE where the probability is 0
+    // Last update's arrays, reused by the next one unless they were shared
+    private float[] backProbabilities;
+    private byte[] backMoves;
+    private final boolean[] beenSpotted;
+    // Per ghost, built by the first sample after the belief changes; shared with copies, as they never change
+    private final AtomicReferenceArray<Sampler> samplers = new AtomicReferenceArray<>(numGhosts);
+
+    public CompactGhostPredictions(Maze maze) {
+        this.maze = maze;
+        graph = CompiledMaze.forMaze(maze);
+        // Cut out the end node - it always has no neighbours
+        mazeSize = maze.graph.length - 1;
+        hold(new Beliefs(new float[mazeSize * numGhosts], new byte[mazeSize * numGhosts]));
+        Arrays.fill(moves, NONE);
+        beenSpotted = new boolean[numGhosts];
+    }
+
+    private CompactGhostPredictions(CompactGhostPredictions other) {
+        maze = other.maze;
+        graph = other.graph;
+        mazeSize = other.mazeSize;
+        Beliefs shared = other.beliefs;
+        shared.owners.incrementAndGet();
+        hold(shared);
+        beenSpotted = other.beenSpotted.clone();
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            samplers.set(ghost, other.samplers.get(ghost));
+        }
+    }
+
+    // The arrays of a tracker and how many trackers hold them. Only a sole owner may write to them
+    private static final class Beliefs {
+        final float[] probabilities;
+        final byte[] moves;
+        final AtomicInteger owners = new AtomicInteger(1);
+
+        Beliefs(float[] probabilities, byte[] moves) {
+            this.probabilities = probabilities;
+            this.moves = moves;
+        }
+    }
+
+    private void hold(Beliefs beliefs) {
+        this.beliefs = beliefs;
+        probabilities = beliefs.probabilities;
+        moves = beliefs.moves;
+    }
+
+    // Lets go of the arrays; true if nobody else held them, so they can be reused
+    private boolean release() {
+        return beliefs.owners.decrementAndGet() == 0;
+    }
+
+    // Takes a copy of the arrays if a snapshot may still be reading them. If two holders copy at once, both
+    // take a copy and the shared arrays are simply left to the garbage collector
+    private void own() {
+        if (beliefs.owners.get() > 1) {
+            Beliefs mine = new Beliefs(probabilities.clone(), moves.clone());
+            release();
+            hold(mine);
+        }
+    }
+
+    public void preallocate() {
+        release();
+        hold(new Beliefs(new float[mazeSize * numGhosts], new byte[mazeSize * numGhosts]));
+        Arrays.fill(probabilities, 1.0f / mazeSize);
+        Arrays.fill(moves, NEUTRAL);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            samplers.set(ghost, null);
+        }
+    }
+
+    public void observe(GHOST ghost, int index, MOVE lastMoveMade) {
+        own();
+        int start = ghost.ordinal() * mazeSize;
+        Arrays.fill(probabilities, start, start + mazeSize, 0);
+        Arrays.fill(moves, start, start + mazeSize, NONE);
+        probabilities[start + index] = 1.0f;
+        moves[start + index] = (byte) lastMoveMade.ordinal();
+        beenSpotted[ghost.ordinal()] = true;
+        samplers.set(ghost.ordinal(), null);
+    }
+
+    public void observeNotPresent(GHOST ghost, int index) {
+        own();
+        int start = ghost.ordinal() * mazeSize;
+        float probabilityAdjustment = 1 - probabilities[start + index];
+        if (probabilityAdjustment <= 0) {
+            // The ghost can only have been there: no belief, as in GhostPredictionsFast
+            clear(ghost.ordinal());
+            return;
+        }
+        probabilities[start + index] = 0;
+        moves[start + index] = NONE;
+        for (int i = start; i < start + mazeSize; i++) {
+            probabilities[i] /= probabilityAdjustment;
+        }
+        samplers.set(ghost.ordinal(), null);
+    }
+
+    public void observeNotPresent(GHOST ghost, long[] visible) {
+        int start = ghost.ordinal() * mazeSize;
+        double removed = 0;
+        for (int word = 0; word < visible.length; word++) {
+            for (long bits = visible[word]; bits != 0; bits &= bits - 1) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (index >= mazeSize) break;
+                removed += probabilities[start + index];
+            }
+        }
+        if (removed == 0) {
+            // Nothing to write, so a snapshot can go on sharing the arrays
+            return;
+        }
+        own();
+        for (int word = 0; word < visible.length; word++) {
+            for (long bits = visible[word]; bits != 0; bits &= bits - 1) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (index >= mazeSize) break;
+                probabilities[start + index] = 0;
+                moves[start + index] = NONE;
+            }
+        }
+        float probabilityAdjustment = (float) (1 - removed);
+        if (probabilityAdjustment <= 0) {
+            clear(ghost.ordinal()); // Everywhere it could be was seen
+            return;
+        }
+        for (int i = start; i < start + mazeSize; i++) {
+            probabilities[i] /= probabilityAdjustment;
+        }
+        samplers.set(ghost.ordinal(), null);
+    }
+
+    // Only after own()
+    private void clear(int ghost) {
+        int start = ghost * mazeSize;
+        Arrays.fill(probabilities, start, start + mazeSize, 0);
+        Arrays.fill(moves, start, start + mazeSize, NONE);
+        samplers.set(ghost, null);
+    }
+
+    public void update() {
+        float[] next = backProbabilities;
+        byte[] nextMoves = backMoves;
+        if (next == null) {
+            next = new float[probabilities.length];
+            nextMoves = new byte[moves.length];
+        } else {
+            Arrays.fill(next, 0);
+        }
+        Arrays.fill(nextMoves, NONE);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            samplers.set(ghost, null);
+            if (!beenSpotted[ghost]) {
+                // Nothing spreads, so the ghost ends up with no probability anywhere
+                continue;
+            }
+            int start = ghost * mazeSize;
+            for (int i = start; i < start + mazeSize; i++) {
+                if (probabilities[i] > THRESHOLD) {
+                    spread(start, i, next, nextMoves);
+                }
+            }
+        }
+        // Arrays a snapshot still reads are left to it; otherwise they are next update's to write into
+        boolean reusable = release();
+        backProbabilities = reusable ? probabilities : null;
+        backMoves = reusable ? moves : null;
+        hold(new Beliefs(next, nextMoves));
+    }
+
+    // Shares the probability at i between the moves out of it, except going back, as GhostPredictionsFast does
+    private void spread(int start, int i, float[] next, byte[] nextMoves) {
+        int node = i - start;
+        float probability = probabilities[i] / (graph.getNeighbourCount(node) - 1);
+        int back = MOVES[moves[i]].opposite().ordinal();
+        for (int move = 0; move < 4; move++) {
+            if (move == back) {
+                continue;
+            }
+            int neighbour = graph.getNeighbour(node, move);
+            if (neighbour != -1) {
+                int index = start + neighbour;
+                // If we haven't already written to there or what we wrote was less probable
+                if (next[index] <= probabilities[index]) {
+                    next[index] = probability;
+                    nextMoves[index] = (byte) move;
+                }
+            }
+        }
+    }
+
+    public double calculate(int index) {
+        if (index >= mazeSize) return 0;
+        double sum = 1.0d;
+        // Calculate the likelihood of there being no ghosts at all
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            sum *= (1 - probabilities[(mazeSize * ghost) + index]);
+        }
+        // Then reverse the probability to work out the chance of a ghost
+        return 1 - sum;
+    }
+
+    public EnumMap<GHOST, GhostLocation> sampleLocations() {
+        return sampleLocations(RANDOMS.get());
+    }
+
+    public EnumMap<GHOST, GhostLocation> sampleLocations(SplittableRandom random) {
+        EnumMap<GHOST, GhostLocation> results = new EnumMap<>(GHOST.class);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            int i = sample(ghost, random);
+            if (i != -1) {
+                results.put(GHOST.values()[ghost], new GhostLocation(i % mazeSize, sampleMove(i, random), probabilities[i]));
+            }
+        }
+        return results;
+    }
+
+    public void sampleLocations(SplittableRandom random, int[] indices, int[] moves) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            int i = sample(ghost, random);
+            if (i == -1) {
+                indices[ghost] = -1;
+                continue;
+            }
+            indices[ghost] = i % mazeSize;
+            moves[ghost] = sampleMove(i, random).ordinal();
+        }
+    }
+
+    // Returns the index into probabilities of the ghost's sampled node, -1 if it has no belief
+    private int sample(int ghost, SplittableRandom random) {
+        double x = random.nextDouble();
+        Sampler sampler = samplers.get(ghost);
+        if (sampler == null) {
+            sampler = new Sampler(probabilities, ghost * mazeSize, mazeSize);
+            samplers.set(ghost, sampler);
+        }
+        return sampler.sample(x);
+    }
+
+    // A ghost that hasn't been seen moving could have come in any way
+    private MOVE sampleMove(int i, SplittableRandom random) {
+        if (moves[i] != NEUTRAL) {
+            return MOVES[moves[i]];
+        }
+        MOVE[] possibleMoves = graph.getAllMoves(i % mazeSize);
+        return possibleMoves[random.nextInt(possibleMoves.length)].opposite();
+    }
+
+    // The nodes of one slice with any probability and the running total up to each, for a binary search
+    private static final class Sampler {
+        private final int[] indices; // Into probabilities
+        private final double[] totals;
+
+        Sampler(float[] probabilities, int start, int length) {
+            int size = 0;
+            for (int i = start; i < start + length; i++) {
+                if (probabilities[i] > 0) size++;
+            }
+            indices = new int[size];
+            totals = new double[size];
+            double sum = 0.0d;
+            int k = 0;
+            for (int i = start; i < start + length; i++) {
+                if (probabilities[i] > 0) {
+                    sum += probabilities[i];
+                    indices[k] = i;
+                    totals[k++] = sum;
+                }
+            }
+        }
+
+        // Returns the index where the running total reaches x, -1 if it never does
+        int sample(double x) {
+            int low = 0;
+            int high = totals.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (totals[middle] >= x) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return (low < totals.length) ? indices[low] : -1;
+        }
+    }
+
+    public CompactGhostPredictions copy() {
+        return new CompactGhostPredictions(this);
+    }
+
+    public List<GhostLocation> getGhostLocations(GHOST ghost) {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        addGhostLocations(ghost, locations);
+        return locations;
+    }
+
+    public List<GhostLocation> getGhostLocations() {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        for (GHOST ghost : GHOST.values()) {
+            addGhostLocations(ghost, locations);
+        }
+        return locations;
+    }
+
+    private void addGhostLocations(GHOST ghost, List<GhostLocation> locations) {
+        forEachLocation(ghost, (index, move, probability) ->
+                locations.add(new GhostLocation(index, MOVES[move], probability)));
+    }
+
+    public void forEachLocation(GHOST ghost, LocationVisitor visitor) {
+        int start = ghost.ordinal() * mazeSize;
+        for (int i = start; i < start + mazeSize; i++) {
+            if (probabilities[i] > 0) {
+                visitor.visit(i - start, moves[i], probabilities[i]);
+            }
+        }
+    }
+
+    public int copyLocations(GHOST ghost, int[] indices, int[] moves, double[] probabilities) {
+        int start = ghost.ordinal() * mazeSize;
+        int size = 0;
+        for (int i = start; i < start + mazeSize; i++) {
+            if (this.probabilities[i] > 0) {
+                indices[size] = i - start;
+                moves[size] = this.moves[i];
+                probabilities[size++] = this.probabilities[i];
+            }
+        }
+        return size;
+    }
+}
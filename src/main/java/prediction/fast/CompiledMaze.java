@@ -0,0 +1,112 @@
+package prediction.fast;
+
+import pacman.game.Constants.MOVE;
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The maze graph in primitive arrays, for the loops that move ghosts and Ms. Pac-Man around every tick
+ * or every simulated step, where the EnumMaps of Node cost a boxed lookup per move.
+ *
+ * Moves are ordinals. Neighbours are one int table with -1 for a wall; the moves out of a node that don't
+ * reverse the last one are byte lists, also kept as MOVE arrays for callers that hand them on; junctions
+ * are bits. The lists are the maze's own allPossibleMoves, or every move out of the node where it has none
+ * for that last move. Built once per maze and shared.
+ */
+public final class CompiledMaze {
+    private static final Map<Maze, CompiledMaze> MAZES = new ConcurrentHashMap<>();
+    private static final MOVE[] MOVES = MOVE.values();
+
+    private final int[] neighbours; // [node * 4 + move], -1 where there is a wall
+    private final byte[] neighbourCounts;
+    private final long[] junctions; // Bit per node, set if it has more than two ways out
+    private final byte[] moves; // The list of (node, lastMove) starts at firstMove[node * 5 + lastMove] and ends where the next starts
+    private final int[] firstMove;
+    private final MOVE[][] possibleMoves; // [node * 5 + lastMove], the same lists
+    private final MOVE[][] allMoves; // [node], backwards included
+
+    private CompiledMaze(Maze maze) {
+        int nodes = maze.graph.length;
+        neighbours = new int[nodes * 4];
+        neighbourCounts = new byte[nodes];
+        junctions = new long[(nodes + 63) >>> 6];
+        firstMove = new int[nodes * MOVES.length + 1];
+        possibleMoves = new MOVE[nodes * MOVES.length][];
+        allMoves = new MOVE[nodes][];
+        int total = 0;
+        for (int i = 0; i < nodes; i++) {
+            Node node = maze.graph[i];
+            for (int move = 0; move < 4; move++) {
+                Integer neighbour = node.neighbourhood.get(MOVES[move]);
+                neighbours[i * 4 + move] = (neighbour == null) ? -1 : neighbour;
+            }
+            neighbourCounts[i] = (byte) node.numNeighbouringNodes;
+            if (node.numNeighbouringNodes > 2) junctions[i >>> 6] |= 1L << i;
+            allMoves[i] = node.neighbourhood.keySet().toArray(new MOVE[node.neighbourhood.size()]);
+            for (MOVE lastMove : MOVES) {
+                MOVE[] possible = node.allPossibleMoves.get(lastMove);
+                possibleMoves[i * MOVES.length + lastMove.ordinal()] = (possible == null) ? allMoves[i] : possible;
+                total += possibleMoves[i * MOVES.length + lastMove.ordinal()].length;
+            }
+        }
+        moves = new byte[total];
+        int position = 0;
+        for (int list = 0; list < possibleMoves.length; list++) {
+            firstMove[list] = position;
+            for (MOVE move : possibleMoves[list]) moves[position++] = (byte) move.ordinal();
+        }
+        firstMove[possibleMoves.length] = position;
+    }
+
+    public static CompiledMaze forMaze(Maze maze) {
+        return MAZES.computeIfAbsent(maze, CompiledMaze::new);
+    }
+
+    public int getNodeCount() {
+        return neighbourCounts.length;
+    }
+
+    /**
+     * @return The node move leads to from index, -1 if there is a wall (or the move is NEUTRAL)
+     */
+    public int getNeighbour(int index, int move) {
+        return (move < 4) ? neighbours[index * 4 + move] : -1;
+    }
+
+    public int getNeighbourCount(int index) {
+        return neighbourCounts[index];
+    }
+
+    public boolean isJunction(int index) {
+        return (junctions[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Moves out of index that don't reverse lastMove are numbered from 0 to getMoveCount(index, lastMove)
+     */
+    public int getMoveCount(int index, int lastMove) {
+        int list = index * MOVES.length + lastMove;
+        return firstMove[list + 1] - firstMove[list];
+    }
+
+    public int getMove(int index, int lastMove, int number) {
+        return moves[firstMove[index * MOVES.length + lastMove] + number];
+    }
+
+    /**
+     * @return The same moves as getMove gives; the array is shared, so it must not be changed
+     */
+    public MOVE[] getPossibleMoves(int index, int lastMove) {
+        return possibleMoves[index * MOVES.length + lastMove];
+    }
+
+    /**
+     * @return Every move out of index, backwards included; shared like getPossibleMoves
+     */
+    public MOVE[] getAllMoves(int index) {
+        return allMoves[index];
+    }
+}
@@ -0,0 +1,80 @@
+package prediction.fast;
+
+import pacman.game.internal.Maze;
+import prediction.GhostTracker;
+
+import java.util.Arrays;
+
+import static pacman.game.Constants.GHOST;
+
+/**
+ * The chance that some ghost that can eat PM is on each node now and for each of the next few steps, as any
+ * GhostTracker would give it after that many updates.
+ *
+ * compute works on a scratch copy of the beliefs that lives as long as this does, and writes every step into one
+ * flat float array, so after it each lookup is a single array read. With the trackers that can be copied into
+ * an existing one, nothing is allocated from tick to tick.
+ */
+public final class GhostHorizon {
+    private final Maze maze;
+    private final int mazeSize;
+    private final int horizon;
+    private final float[] occupancy; // [step * mazeSize + node], step 0 is the current tick
+    private GhostTracker scratch;
+    private int offset; // Of the step being computed
+    // Multiplies the chance that no ghost is on each node by the chance that this one isn't
+    private final GhostTracker.LocationVisitor absence;
+
+    /**
+     * @param horizon How many steps ahead to look
+     */
+    public GhostHorizon(Maze maze, int horizon) {
+        this.maze = maze;
+        // The same nodes as GhostPredictionsFast, which leaves out the last one
+        mazeSize = maze.graph.length - 1;
+        this.horizon = horizon;
+        occupancy = new float[(horizon + 1) * mazeSize];
+        absence = (index, move, probability) -> {
+            if (index < mazeSize) occupancy[offset + index] *= (float) (1 - probability);
+        };
+    }
+
+    /**
+     * @param edibleTimes How many more ticks each ghost, by ordinal, stays edible, -1 if it isn't. A ghost only
+     *                    counts from the step it is no longer edible
+     */
+    public void compute(GhostTracker beliefs, int[] edibleTimes) {
+        scratch = beliefs.copy(scratch);
+        for (int step = 0; step <= horizon; step++) {
+            if (step > 0) {
+                scratch.update();
+            }
+            offset = step * mazeSize;
+            Arrays.fill(occupancy, offset, offset + mazeSize, 1f);
+            for (GHOST ghost : GHOST.values()) {
+                if (edibleTimes[ghost.ordinal()] <= step) {
+                    scratch.forEachLocation(ghost, absence);
+                }
+            }
+            for (int i = offset; i < offset + mazeSize; i++) {
+                occupancy[i] = 1 - occupancy[i];
+            }
+        }
+    }
+
+    public int getHorizon() {
+        return horizon;
+    }
+
+    public Maze getMaze() {
+        return maze;
+    }
+
+    /**
+     * @return The chance of a ghost on index step updates from now, as of the last compute
+     */
+    public float get(int step, int index) {
+        if (index >= mazeSize) return 0;
+        return occupancy[step * mazeSize + index];
+    }
+}
@@ -0,0 +1,94 @@
+package prediction.fast;
+
+import pacman.game.Constants.MOVE;
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lookup table for the simple ghost model used in MCTS rollouts: at a junction a ghost takes the
+ * non-reversing move that brings it closest to Ms. Pac-Man, or the one that takes it furthest away
+ * while it is edible (shortest path distances, as getNextMoveTowardsTarget and
+ * getApproximateNextMoveAwayFromTarget measure them).
+ *
+ * Moves are packed four to a byte. There is one row per (junction, last move, edible) holding the
+ * move for every Ms. Pac-Man node; rows are filled the first time they are needed, so a new maze
+ * costs nothing up front. Tables are shared by everyone searching the same maze.
+ */
+public final class GhostPolicyTable {
+    private static final Map<Maze, GhostPolicyTable> TABLES = new ConcurrentHashMap<>();
+    private static final MOVE[] MOVES = MOVE.values();
+
+    private final Maze maze;
+    private final int[] junctions; // Node index -> junction number, -1 if it isn't one
+    private final AtomicReferenceArray<byte[]> rows; // [(junction * 5 + lastMove) * 2 + edible]
+
+    private GhostPolicyTable(Maze maze) {
+        this.maze = maze;
+        junctions = new int[maze.graph.length];
+        int count = 0;
+        for (int i = 0; i < maze.graph.length; i++) {
+            junctions[i] = (maze.graph[i].numNeighbouringNodes > 2) ? count++ : -1;
+        }
+        rows = new AtomicReferenceArray<>(count * MOVES.length * 2);
+    }
+
+    public static GhostPolicyTable forMaze(Maze maze) {
+        return TABLES.computeIfAbsent(maze, GhostPolicyTable::new);
+    }
+
+    public boolean isJunction(int index) {
+        return junctions[index] != -1;
+    }
+
+    /**
+     * @param ghostIndex A junction the ghost is on
+     * @param lastMove Ordinal of the ghost's last move
+     * @param pacmanIndex Where Ms. Pac-Man is
+     * @param edible Whether the ghost is running away
+     * @return Ordinal of the move the ghost makes
+     */
+    public int getMove(int ghostIndex, int lastMove, int pacmanIndex, boolean edible) {
+        int slot = ((junctions[ghostIndex] * MOVES.length) + lastMove) * 2 + (edible ? 1 : 0);
+        byte[] row = rows.get(slot);
+        if (row == null) {
+            // Two threads may both build it, but they build the same thing
+            row = buildRow(ghostIndex, MOVES[lastMove], edible);
+            rows.set(slot, row);
+        }
+        return (row[pacmanIndex >>> 2] >>> ((pacmanIndex & 3) << 1)) & 3;
+    }
+
+    public MOVE getMove(int ghostIndex, MOVE lastMove, int pacmanIndex, boolean edible) {
+        return MOVES[getMove(ghostIndex, lastMove.ordinal(), pacmanIndex, edible)];
+    }
+
+    private byte[] buildRow(int ghostIndex, MOVE lastMove, boolean edible) {
+        Node node = maze.graph[ghostIndex];
+        MOVE[] moves = node.allPossibleMoves.get(lastMove);
+        if (moves == null) moves = node.neighbourhood.keySet().toArray(new MOVE[node.neighbourhood.size()]);
+        byte[] row = new byte[(maze.graph.length + 3) >>> 2];
+        for (int pacman = 0; pacman < maze.graph.length; pacman++) {
+            int best = moves[0].ordinal();
+            int bestDistance = edible ? -1 : Integer.MAX_VALUE;
+            for (MOVE move : moves) {
+                int distance = distance(node.neighbourhood.get(move), pacman);
+                if (edible ? distance > bestDistance : distance < bestDistance) {
+                    best = move.ordinal();
+                    bestDistance = distance;
+                }
+            }
+            row[pacman >>> 2] |= best << ((pacman & 3) << 1);
+        }
+        return row;
+    }
+
+    private int distance(int from, int to) {
+        if (from == to) return 0;
+        if (from < to) return maze.shortestPathDistances[((to * (to + 1)) / 2) + from];
+        return maze.shortestPathDistances[((from * (from + 1)) / 2) + to];
+    }
+}
@@ -1,32 +1,57 @@
 package prediction.fast;
 
 import pacman.game.internal.Maze;
-import pacman.game.internal.Node;
 import prediction.GhostLocation;
+import prediction.GhostTracker;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static pacman.game.Constants.GHOST;
 import static pacman.game.Constants.MOVE;
 
 /**
  * Created by Piers on 16/05/2016.
+ *
+ * Each ghost's belief is usually spread over a handful of nodes, so alongside the arrays every ghost keeps a
+ * sorted list of the nodes it may be on, and update, sampling and renormalisation only visit those. Once a
+ * belief covers more than a quarter of the maze (by default) the list is dropped and that ghost is scanned in full again,
+ * until an update narrows it back down. Either way the results are the same as scanning the whole maze.
  */
-public class GhostPredictionsFast {
+public class GhostPredictionsFast implements GhostTracker {
     private static final int numGhosts = GHOST.values().length;
+    private static final MOVE[] MOVES = MOVE.values();
+    // Beliefs on more nodes than mazeSize / denseFraction are scanned in full
+    private int denseFraction = 4;
+    // Beliefs on fewer nodes than this are updated by the calling thread even when given a pool
+    private int parallelMin = 64;
     // First mazeSize indices are for ghost Ordinal 0 etc ...
     private double[] probabilities;
-    private double[] backProbabilities;
+    private double[] backProbabilities; // Laid out the same, so each ghost has its own slice to write into
     private MOVE[] moves;
     private MOVE[] backMoves;
     private Maze maze;
+    private CompiledMaze graph;
     private int mazeSize;
     private static final double THRESHOLD = 1 / 256.0d;
+    // For callers that don't bring their own generator
+    private static final ThreadLocal<SplittableRandom> RANDOMS = ThreadLocal.withInitial(SplittableRandom::new);
     private EnumMap<GHOST, Boolean> beenSpotted;
-    private Random random;
+    // Per ghost: the nodes with any probability, in index order, unless the ghost is dense
+    private int[][] active;
+    private int[] activeCounts;
+    private boolean[] dense;
+    private int[][] nextActive; // Per ghost scratch list, swapped with the ghost's after its update
+    // Per ghost, built by the first sample after the belief changes and dropped by the next change.
+    // Searching threads may build one at the same time, but they build the same thing
+    private final AtomicReferenceArray<Sampler> samplers = new AtomicReferenceArray<>(numGhosts);
 
     public GhostPredictionsFast(Maze maze) {
         this.maze = maze;
+        graph = CompiledMaze.forMaze(maze);
         // Cut out the end node - it always has no neighbours
         mazeSize = maze.graph.length - 1;
         probabilities = new double[mazeSize * numGhosts];
@@ -37,7 +62,21 @@ public class GhostPredictionsFast {
         }
         moves = new MOVE[mazeSize * numGhosts];
         backMoves = new MOVE[mazeSize * numGhosts];
-        random = new Random();
+        active = new int[numGhosts][mazeSize];
+        activeCounts = new int[numGhosts];
+        dense = new boolean[numGhosts];
+        nextActive = new int[numGhosts][mazeSize];
+    }
+
+    // Both take effect from the next update; GhostThresholdsBenchmark compares values of them
+    public GhostPredictionsFast setDenseFraction(int denseFraction) {
+        this.denseFraction = Math.max(1, denseFraction);
+        return this;
+    }
+
+    public GhostPredictionsFast setParallelMin(int parallelMin) {
+        this.parallelMin = Math.max(0, parallelMin);
+        return this;
     }
 
     public void preallocate() {
@@ -45,63 +84,256 @@ public class GhostPredictionsFast {
         double probability = 1 / ((probabilities.length * 1.0d) / GHOST.values().length);
         Arrays.fill(probabilities, probability);
         Arrays.fill(moves, MOVE.NEUTRAL);
+        Arrays.fill(dense, true);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            samplers.set(ghost, null);
+        }
     }
 
     public void observe(GHOST ghost, int index, MOVE lastMoveMade) {
         int startIndex = (ghost.ordinal() * mazeSize);
         int arrayIndex = startIndex + index;
-        Arrays.fill(probabilities, startIndex, startIndex + mazeSize, 0);
-        Arrays.fill(moves, startIndex, startIndex + mazeSize, null);
+        clear(ghost.ordinal());
         probabilities[arrayIndex] = 1.0d;
         beenSpotted.put(ghost, true);
         moves[arrayIndex] = lastMoveMade;
+        active[ghost.ordinal()][0] = index;
+        activeCounts[ghost.ordinal()] = 1;
     }
 
     public void observeNotPresent(GHOST ghost, int index) {
         int startIndex = (ghost.ordinal() * mazeSize);
         int arrayIndex = startIndex + index;
         double probabilityAdjustment = (1 - probabilities[arrayIndex]);
+        if (probabilityAdjustment <= 0) {
+            // The ghost can only have been there, so there is nothing left to renormalise: no belief, as for a
+            // ghost that was never spotted
+            clear(ghost.ordinal());
+            return;
+        }
         probabilities[arrayIndex] = 0;
         moves[arrayIndex] = null;
-        for (int i = startIndex; i < startIndex + mazeSize; i++) {
-            probabilities[i] /= probabilityAdjustment;
+        samplers.set(ghost.ordinal(), null);
+        if (dense[ghost.ordinal()]) {
+            for (int i = startIndex; i < startIndex + mazeSize; i++) {
+                probabilities[i] /= probabilityAdjustment;
+            }
+            return;
+        }
+        int[] indices = active[ghost.ordinal()];
+        int count = activeCounts[ghost.ordinal()];
+        int position = Arrays.binarySearch(indices, 0, count, index);
+        if (position >= 0) {
+            System.arraycopy(indices, position + 1, indices, position, count - position - 1);
+            activeCounts[ghost.ordinal()] = --count;
+        }
+        for (int k = 0; k < count; k++) {
+            probabilities[startIndex + indices[k]] /= probabilityAdjustment;
+        }
+    }
+
+    // The ghost is on none of the nodes set in visible (bit i of word i / 64 for node i, as VisibilityCache
+    // gives them): all of them are cleared together and the rest renormalised once
+    public void observeNotPresent(GHOST ghost, long[] visible) {
+        int startIndex = (ghost.ordinal() * mazeSize);
+        double removed = 0;
+        if (dense[ghost.ordinal()]) {
+            for (int word = 0; word < visible.length; word++) {
+                for (long bits = visible[word]; bits != 0; bits &= bits - 1) {
+                    int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (index >= mazeSize) break;
+                    removed += probabilities[startIndex + index];
+                    probabilities[startIndex + index] = 0;
+                    moves[startIndex + index] = null;
+                }
+            }
+        } else {
+            int[] indices = active[ghost.ordinal()];
+            int count = 0;
+            for (int k = 0; k < activeCounts[ghost.ordinal()]; k++) {
+                int index = indices[k];
+                if ((visible[index >>> 6] & (1L << index)) != 0) {
+                    removed += probabilities[startIndex + index];
+                    probabilities[startIndex + index] = 0;
+                    moves[startIndex + index] = null;
+                } else {
+                    indices[count++] = index;
+                }
+            }
+            activeCounts[ghost.ordinal()] = count;
+        }
+        if (removed == 0) {
+            return;
+        }
+        double probabilityAdjustment = 1 - removed;
+        if (probabilityAdjustment <= 0) {
+            clear(ghost.ordinal()); // Everywhere it could be was seen, as in the single node call
+            return;
+        }
+        samplers.set(ghost.ordinal(), null);
+        if (dense[ghost.ordinal()]) {
+            for (int i = startIndex; i < startIndex + mazeSize; i++) {
+                probabilities[i] /= probabilityAdjustment;
+            }
+        } else {
+            int[] indices = active[ghost.ordinal()];
+            for (int k = 0; k < activeCounts[ghost.ordinal()]; k++) {
+                probabilities[startIndex + indices[k]] /= probabilityAdjustment;
+            }
         }
     }
 
     public void update() {
         for (int ghost = 0; ghost < numGhosts; ghost++) {
-            if (!beenSpotted.get(GHOST.values()[ghost])) {
+            update(ghost);
+        }
+    }
+
+    // The same as update(), but wide beliefs are updated on pool while the calling thread does the rest. Each
+    // ghost only touches its own slice of the arrays and its own scratch list, so they don't need to be locked
+    public void update(ExecutorService pool) {
+        Future<?>[] updates = new Future<?>[numGhosts];
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (dense[ghost] || activeCounts[ghost] >= parallelMin) {
+                int forked = ghost;
+                updates[ghost] = pool.submit(() -> update(forked));
+            }
+        }
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (updates[ghost] == null) {
+                update(ghost);
+            }
+        }
+        boolean interrupted = false;
+        for (Future<?> pending : updates) {
+            // The beliefs are only whole again once every ghost is done, so wait even if interrupted
+            while (pending != null) {
+                try {
+                    pending.get();
+                    pending = null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Ghost update failed", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void update(int ghost) {
+        if (!beenSpotted.get(GHOST.values()[ghost])) {
+            // Nothing spreads, so the ghost ends up with no probability anywhere
+            clear(ghost);
+            return;
+        }
+        samplers.set(ghost, null);
+        if (dense[ghost]) {
+            updateDense(ghost);
+        } else {
+            updateSparse(ghost);
+        }
+    }
+
+    private void updateDense(int ghost) {
+        int start = mazeSize * ghost;
+        for (int i = start; i < start + mazeSize; i++) {
+            if (probabilities[i] > THRESHOLD) {
+                spread(start, i, null, 0);
+            }
+        }
+        // Move the result across, listing where it landed in case it has narrowed enough to go sparse
+        int[] indices = active[ghost];
+        int count = 0;
+        for (int i = start; i < start + mazeSize; i++) {
+            probabilities[i] = backProbabilities[i];
+            moves[i] = backMoves[i];
+            backProbabilities[i] = 0;
+            backMoves[i] = null;
+            if (probabilities[i] > 0) {
+                indices[count++] = i - start;
+            }
+        }
+        activeCounts[ghost] = count;
+        dense[ghost] = count > mazeSize / denseFraction;
+    }
+
+    private void updateSparse(int ghost) {
+        int start = mazeSize * ghost;
+        int[] indices = active[ghost];
+        int[] next = nextActive[ghost];
+        int count = activeCounts[ghost];
+        int reached = 0;
+        for (int k = 0; k < count; k++) {
+            int i = start + indices[k];
+            if (probabilities[i] > THRESHOLD) {
+                reached = spread(start, i, next, reached);
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            probabilities[start + indices[k]] = 0;
+            moves[start + indices[k]] = null;
+        }
+        for (int k = 0; k < reached; k++) {
+            int i = start + next[k];
+            probabilities[i] = backProbabilities[i];
+            moves[i] = backMoves[i];
+            backProbabilities[i] = 0;
+            backMoves[i] = null;
+        }
+        // Index order, so that sampling adds the probabilities up in the same order as a full scan
+        Arrays.sort(next, 0, reached);
+        active[ghost] = next;
+        nextActive[ghost] = indices;
+        activeCounts[ghost] = reached;
+        dense[ghost] = reached > mazeSize / denseFraction;
+    }
+
+    // Shares the probability at i between the moves out of it, except going back. Nodes written for the first
+    // time are appended to reached, if given; returns the new length of reached
+    private int spread(int start, int i, int[] reached, int count) {
+        int node = i - start;
+        int numberNodes = graph.getNeighbourCount(node);
+        double probability = probabilities[i] / (numberNodes - 1);
+        MOVE back = moves[i].opposite();
+        for (MOVE move : MOVES) {
+            if (move == back) {
                 continue;
             }
-            for (int i = (mazeSize * ghost); i < (mazeSize * (ghost + 1)); i++) {
-                if (probabilities[i] > THRESHOLD) {
-                    Node currentNode = maze.graph[i % mazeSize];
-                    int numberNodes = currentNode.numNeighbouringNodes;
-                    double probability = probabilities[i] / (numberNodes - 1);
-//                    System.out.println(probability + " n: " + numberNodes + " orig: " + probabilities[i]);
-                    MOVE back = moves[i].opposite();
-                    for (MOVE move : MOVE.values()) {
-                        if (move == back) {
-                            continue;
-                        }
-                        if (currentNode.neighbourhood.containsKey(move)) {
-                            int index = currentNode.neighbourhood.get(move);
-                            // If we haven't already written to there or what we wrote was less probable
-                            if (backProbabilities[(mazeSize * ghost) + index] <= probabilities[(mazeSize * ghost) + index]) {
-                                backProbabilities[(mazeSize * ghost) + index] = probability;
-                                backMoves[(mazeSize * ghost) + index] = move;
-                            }
-                        }
+            int neighbour = graph.getNeighbour(node, move.ordinal());
+            if (neighbour != -1) {
+                int index = start + neighbour;
+                // If we haven't already written to there or what we wrote was less probable
+                if (backProbabilities[index] <= probabilities[index]) {
+                    if (reached != null && backProbabilities[index] == 0) {
+                        reached[count++] = neighbour;
                     }
+                    backProbabilities[index] = probability;
+                    backMoves[index] = move;
                 }
             }
         }
+        return count;
+    }
 
-        System.arraycopy(backProbabilities, 0, probabilities, 0, probabilities.length);
-        Arrays.fill(backProbabilities, 0.0d);
-
-        System.arraycopy(backMoves, 0, moves, 0, moves.length);
-        Arrays.fill(backMoves, null);
+    // Leaves the ghost with no probability anywhere, as a sparse belief
+    private void clear(int ghost) {
+        samplers.set(ghost, null);
+        int start = mazeSize * ghost;
+        if (dense[ghost]) {
+            Arrays.fill(probabilities, start, start + mazeSize, 0);
+            Arrays.fill(moves, start, start + mazeSize, null);
+            dense[ghost] = false;
+        } else {
+            int[] indices = active[ghost];
+            for (int k = 0; k < activeCounts[ghost]; k++) {
+                probabilities[start + indices[k]] = 0;
+                moves[start + indices[k]] = null;
+            }
+        }
+        activeCounts[ghost] = 0;
     }
 
     public final double calculate(int index) {
@@ -116,61 +348,178 @@ public class GhostPredictionsFast {
     }
 
     public EnumMap<GHOST, GhostLocation> sampleLocations() {
+        return sampleLocations(RANDOMS.get());
+    }
+
+    // Searching threads pass their own generator, so sampling neither contends nor depends on what other threads drew
+    public EnumMap<GHOST, GhostLocation> sampleLocations(SplittableRandom random) {
         EnumMap<GHOST, GhostLocation> results = new EnumMap<GHOST, GhostLocation>(GHOST.class);
 
         for (int ghost = 0; ghost < numGhosts; ghost++) {
-            double x = Math.random();
+            int i = sample(ghost, random);
+            if (i == -1) {
+                continue;
+            }
+            results.put(GHOST.values()[ghost], new GhostLocation(i % mazeSize, sampleMove(i, random), probabilities[i]));
+        }
+        return results;
+    }
+
+    public void sampleLocations(SplittableRandom random, int[] indices, int[] moves) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            int i = sample(ghost, random);
+            if (i == -1) {
+                indices[ghost] = -1;
+                continue;
+            }
+            indices[ghost] = i % mazeSize;
+            moves[ghost] = sampleMove(i, random).ordinal();
+        }
+    }
+
+    // Returns the index into probabilities of the ghost's sampled node, -1 if it has no belief
+    private int sample(int ghost, SplittableRandom random) {
+        double x = random.nextDouble();
+        Sampler sampler = samplers.get(ghost);
+        if (sampler == null) {
+            sampler = new Sampler(ghost);
+            samplers.set(ghost, sampler);
+        }
+        return sampler.sample(x);
+    }
+
+    // A ghost that hasn't been seen moving could have come in any way
+    private MOVE sampleMove(int i, SplittableRandom random) {
+        if (!moves[i].equals(MOVE.NEUTRAL)) {
+            return moves[i];
+        }
+        MOVE[] possibleMoves = graph.getAllMoves(i % mazeSize);
+        return possibleMoves[random.nextInt(possibleMoves.length)].opposite();
+    }
+
+    // The nodes a ghost may be on with the running total of their probabilities, in index order, so that a
+    // binary search finds the same node as adding the probabilities up one by one until they reach x
+    private final class Sampler {
+        private final int[] indices; // Into probabilities
+        private final double[] totals;
+
+        Sampler(int ghost) {
+            int start = mazeSize * ghost;
+            int count = dense[ghost] ? mazeSize : activeCounts[ghost];
+            int[] indices = new int[count];
+            double[] totals = new double[count];
+            int size = 0;
             double sum = 0.0d;
-            for (int i = (mazeSize * ghost); i < (mazeSize * (ghost + 1)); i++) {
-                sum += probabilities[i];
-                if (sum >= x) {
-                    if (!moves[i].equals(MOVE.NEUTRAL)) {
-                        results.put(GHOST.values()[ghost], new GhostLocation(i % mazeSize, moves[i], probabilities[i]));
-                    } else {
-                        MOVE[] possibleMoves = maze.graph[i % mazeSize].neighbourhood.keySet().toArray(new MOVE[0]);
-                        results.put(
-                                GHOST.values()[ghost],
-                                new GhostLocation(
-                                        i % mazeSize,
-                                        possibleMoves[random.nextInt(possibleMoves.length)].opposite(),
-                                        probabilities[i]
-                                )
-                        );
-                    }
-                    break;
+            for (int k = 0; k < count; k++) {
+                int i = start + (dense[ghost] ? k : active[ghost][k]);
+                if (probabilities[i] > 0) {
+                    sum += probabilities[i];
+                    indices[size] = i;
+                    totals[size++] = sum;
                 }
             }
+            this.indices = (size == count) ? indices : Arrays.copyOf(indices, size);
+            this.totals = (size == count) ? totals : Arrays.copyOf(totals, size);
+        }
+
+        // Returns the index where the running total reaches x, -1 if it never does
+        int sample(double x) {
+            int low = 0;
+            int high = totals.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (totals[middle] >= x) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return (low == totals.length) ? -1 : indices[low];
         }
-        return results;
     }
 
     public GhostPredictionsFast copy() {
         GhostPredictionsFast other = new GhostPredictionsFast(this.maze);
+        copyInto(other);
+        return other;
+    }
+
+    public GhostTracker copy(GhostTracker reuse) {
+        if (reuse instanceof GhostPredictionsFast && ((GhostPredictionsFast) reuse).maze == maze) {
+            copyInto((GhostPredictionsFast) reuse);
+            return reuse;
+        }
+        return copy();
+    }
+
+    // Makes other, which must be for the same maze, the same as this without allocating anything.
+    // The back buffers are left alone: they are always empty between calls
+    public void copyInto(GhostPredictionsFast other) {
         System.arraycopy(this.probabilities, 0, other.probabilities, 0, probabilities.length);
-        System.arraycopy(this.backProbabilities, 0, other.backProbabilities, 0, backProbabilities.length);
         System.arraycopy(this.moves, 0, other.moves, 0, moves.length);
-        System.arraycopy(this.backMoves, 0, other.backMoves, 0, backMoves.length);
-        return other;
+        other.beenSpotted.putAll(beenSpotted); // update() skips ghosts that were never spotted
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            System.arraycopy(this.active[ghost], 0, other.active[ghost], 0, activeCounts[ghost]);
+            other.samplers.set(ghost, null);
+        }
+        System.arraycopy(this.activeCounts, 0, other.activeCounts, 0, numGhosts);
+        System.arraycopy(this.dense, 0, other.dense, 0, numGhosts);
+        other.denseFraction = denseFraction;
+        other.parallelMin = parallelMin;
     }
 
     public List<GhostLocation> getGhostLocations(GHOST ghost) {
         ArrayList<GhostLocation> locations = new ArrayList<>();
-        for (int i = ghost.ordinal() * mazeSize; i < (ghost.ordinal() + 1) * mazeSize; i++) {
-            if (probabilities[i] > 0) {
-                locations.add(new GhostLocation(i % mazeSize, moves[i], probabilities[i]));
-            }
-        }
+        addGhostLocations(ghost.ordinal(), locations);
         return locations;
     }
 
     public List<GhostLocation> getGhostLocations() {
         ArrayList<GhostLocation> locations = new ArrayList<>();
-        for (int i = 0; i < probabilities.length; i++) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            addGhostLocations(ghost, locations);
+        }
+        return locations;
+    }
+
+    private void addGhostLocations(int ghost, List<GhostLocation> locations) {
+        forEachLocation(GHOST.values()[ghost], (index, move, probability) ->
+                locations.add(new GhostLocation(index, MOVES[move], probability)));
+    }
+
+    public void forEachLocation(GHOST ghost, LocationVisitor visitor) {
+        int start = mazeSize * ghost.ordinal();
+        if (dense[ghost.ordinal()]) {
+            for (int i = start; i < start + mazeSize; i++) {
+                if (probabilities[i] > 0) {
+                    visitor.visit(i - start, moves[i].ordinal(), probabilities[i]);
+                }
+            }
+            return;
+        }
+        int[] indices = active[ghost.ordinal()];
+        for (int k = 0; k < activeCounts[ghost.ordinal()]; k++) {
+            int i = start + indices[k];
             if (probabilities[i] > 0) {
-                locations.add(new GhostLocation(i % mazeSize, moves[i], probabilities[i]));
+                visitor.visit(indices[k], moves[i].ordinal(), probabilities[i]);
             }
         }
-        return locations;
+    }
+
+    public int copyLocations(GHOST ghost, int[] indices, int[] moves, double[] probabilities) {
+        int start = mazeSize * ghost.ordinal();
+        boolean dense = this.dense[ghost.ordinal()];
+        int count = dense ? mazeSize : activeCounts[ghost.ordinal()];
+        int size = 0;
+        for (int k = 0; k < count; k++) {
+            int index = dense ? k : active[ghost.ordinal()][k];
+            if (this.probabilities[start + index] > 0) {
+                indices[size] = index;
+                moves[size] = this.moves[start + index].ordinal();
+                probabilities[size++] = this.probabilities[start + index];
+            }
+        }
+        return size;
     }
 
     public String getGhostInfo(GHOST ghost) {
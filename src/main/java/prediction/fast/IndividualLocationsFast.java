@@ -2,19 +2,23 @@ package prediction.fast;
 
 import pacman.game.Constants;
 import pacman.game.internal.Maze;
-import pacman.game.internal.Node;
 import prediction.GhostLocation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  * Created by pwillic on 13/05/2016.
  */
 public class IndividualLocationsFast {
+    private static final Constants.MOVE[] MOVES = Constants.MOVE.values();
+    // Used by sample(), one per thread so that nothing contends for it
+    private static final ThreadLocal<SplittableRandom> RANDOMS = ThreadLocal.withInitial(SplittableRandom::new);
 
     private Maze maze;
+    private CompiledMaze graph;
 
     private double[] probabilities;
     private double[] backProbabilities;
@@ -24,6 +28,7 @@ public class IndividualLocationsFast {
 
     public IndividualLocationsFast(Maze maze) {
         this.maze = maze;
+        graph = CompiledMaze.forMaze(maze);
         probabilities = new double[maze.graph.length];
         backProbabilities = new double[maze.graph.length];
         moves = new int[maze.graph.length];
@@ -52,18 +57,17 @@ public class IndividualLocationsFast {
     public void update() {
         for (int i = 0; i < probabilities.length; i++) {
             if (probabilities[i] > 0) {
-                Node currentNode = maze.graph[i];
-                int numberNodes = currentNode.numNeighbouringNodes;
+                int numberNodes = graph.getNeighbourCount(i);
                 double probability = probabilities[i] / (numberNodes - 1);
-                Constants.MOVE back = Constants.MOVE.values()[moves[i]].opposite();
-                for (Constants.MOVE move : Constants.MOVE.values()) {
+                int back = MOVES[moves[i]].opposite().ordinal();
+                for (int move = 0; move < 4; move++) {
                     if (move == back) continue;
-                    if (currentNode.neighbourhood.containsKey(move)) {
-                        int index = currentNode.neighbourhood.get(move);
+                    int index = graph.getNeighbour(i, move);
+                    if (index != -1) {
                         // If we haven't already written to there or what we wrote was less probable
                         if (backProbabilities[index] <= probabilities[i]) {
                             backProbabilities[index] = probability;
-                            backMoves[index] = move.ordinal();
+                            backMoves[index] = move;
                         }
                     }
                 }
@@ -97,7 +101,11 @@ public class IndividualLocationsFast {
     }
 
     public GhostLocation sample() {
-        double x = Math.random();
+        return sample(RANDOMS.get());
+    }
+
+    public GhostLocation sample(SplittableRandom random) {
+        double x = random.nextDouble();
         double sum = 0.0d;
         for (int i = 0; i < probabilities.length; i++) {
             sum += probabilities[i];
@@ -0,0 +1,217 @@
+package prediction.fast;
+
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * For every node of a maze, the nodes in a straight line of sight from it, as a bitset over node indices:
+ * itself and everything reached by carrying on in one direction until a wall (a tunnel wrapping round to the
+ * other side of the maze ends the line).
+ *
+ * That is the game's line of sight with no distance limit, and it is symmetric, so the same sets answer what
+ * Ms. Pac-Man can see and which nodes can see her, as ghosts need. Built once per maze and shared; it can also
+ * be written to a directory and read back instead of rebuilt. A file carries a hash of the maze's layout, so one
+ * left by another version of a maze is rebuilt rather than trusted.
+ */
+public final class LineOfSight {
+    private static final Map<Maze, LineOfSight> INDICES = new ConcurrentHashMap<>();
+
+    private final int nodes;
+    private final long hash; // Of the maze it is for, see hash(Maze)
+    private final int words; // Per bitset
+    private final long[] visible; // Bitset of node i is words long from i * words
+
+    private LineOfSight(int nodes, long hash) {
+        this.nodes = nodes;
+        this.hash = hash;
+        words = (nodes + 63) >>> 6;
+        visible = new long[nodes * words];
+    }
+
+    private LineOfSight(Maze maze) {
+        this(maze.graph.length, hash(maze));
+        CompiledMaze graph = CompiledMaze.forMaze(maze);
+        for (int from = 0; from < nodes; from++) {
+            set(from, from);
+            for (int move = 0; move < 4; move++) {
+                int current = from;
+                for (int next = graph.getNeighbour(current, move); next != -1 && ahead(maze.graph[current], maze.graph[next], move);
+                     next = graph.getNeighbour(current, move)) {
+                    set(from, next);
+                    current = next;
+                }
+            }
+        }
+    }
+
+    public static LineOfSight forMaze(Maze maze) {
+        return INDICES.computeIfAbsent(maze, LineOfSight::new);
+    }
+
+    /**
+     * Reads the maze's index from directory if an earlier run left it there, otherwise builds it. Whenever the
+     * file there is missing or for another layout, the index is written to it for the next run
+     */
+    public static LineOfSight forMaze(Maze maze, File directory) {
+        File file = new File(directory, "los-" + maze.name + ".bin");
+        // Files are read and written out here rather than in computeIfAbsent, which must not block for long
+        LineOfSight index = INDICES.get(maze);
+        if (index == null) {
+            long hash = hash(maze);
+            index = load(file, maze.graph.length, hash);
+            if (index == null) {
+                index = new LineOfSight(maze);
+            }
+            LineOfSight existing = INDICES.putIfAbsent(maze, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        if (!index.isStoredIn(file)) {
+            index.save(file);
+        }
+        return index;
+    }
+
+    // Null if the file is missing, unreadable or for another layout
+    private static LineOfSight load(File file, int nodes, long hash) {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            LineOfSight index = read(in);
+            if (index.nodes == nodes && index.hash == hash) return index;
+            System.err.println(file + " is for another maze, rebuilding it");
+        } catch (IOException e) {
+            System.err.println("Could not read " + file + ": " + e);
+        }
+        return null;
+    }
+
+    // Only reads the header
+    private boolean isStoredIn(File file) {
+        if (!file.isFile()) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == nodes && in.readLong() == hash;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Into a temporary file that is then moved over file, so a reader never sees half of one
+    private void save(File file) {
+        File directory = file.getParentFile();
+        directory.mkdirs();
+        File temporary = null;
+        try {
+            temporary = File.createTempFile(file.getName(), ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                write(out);
+            }
+            try {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write " + file + ": " + e);
+            if (temporary != null) temporary.delete();
+        }
+    }
+
+    // Of where every node is and which node each move out of it leads to, so any change to the layout changes it
+    static long hash(Maze maze) {
+        CompiledMaze graph = CompiledMaze.forMaze(maze);
+        long hash = maze.graph.length;
+        for (int i = 0; i < maze.graph.length; i++) {
+            hash = hash * 31 + maze.graph[i].x;
+            hash = hash * 31 + maze.graph[i].y;
+            for (int move = 0; move < 4; move++) {
+                hash = hash * 31 + graph.getNeighbour(i, move);
+            }
+        }
+        return hash;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(nodes);
+        out.writeLong(hash);
+        for (long word : visible) out.writeLong(word);
+    }
+
+    public static LineOfSight read(DataInputStream in) throws IOException {
+        int nodes = in.readInt();
+        LineOfSight index = new LineOfSight(nodes, in.readLong());
+        for (int i = 0; i < index.visible.length; i++) index.visible[i] = in.readLong();
+        return index;
+    }
+
+    // A tunnel takes the line back to the other side of the maze, which can't be seen
+    private static boolean ahead(Node current, Node next, int move) {
+        switch (move) {
+            case 0:
+                return next.y < current.y;
+            case 1:
+                return next.x > current.x;
+            case 2:
+                return next.y > current.y;
+            default:
+                return next.x < current.x;
+        }
+    }
+
+    private void set(int from, int to) {
+        visible[from * words + (to >>> 6)] |= 1L << to;
+    }
+
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * Sight goes both ways, so this is also whether something on to can see from
+     */
+    public boolean canSee(int from, int to) {
+        return (visible[from * words + (to >>> 6)] & (1L << to)) != 0;
+    }
+
+    /**
+     * @return A new bitset of the nodes visible from index, in the same layout as VisibilityCache gives
+     */
+    public long[] getVisible(int index) {
+        long[] bits = new long[words];
+        System.arraycopy(visible, index * words, bits, 0, words);
+        return bits;
+    }
+
+    /**
+     * Keeps, in nodes, only those visible from index (equally, those that can see it)
+     */
+    public void retainVisible(int index, long[] nodes) {
+        for (int word = 0; word < words; word++) {
+            nodes[word] &= visible[index * words + word];
+        }
+    }
+
+    /**
+     * @return Whether any of nodes is visible from index
+     */
+    public boolean seesAny(int index, long[] nodes) {
+        for (int word = 0; word < words; word++) {
+            if ((nodes[word] & visible[index * words + word]) != 0) return true;
+        }
+        return false;
+    }
+}
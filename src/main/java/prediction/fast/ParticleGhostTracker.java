@@ -0,0 +1,320 @@
+package prediction.fast;
+
+import pacman.game.internal.Maze;
+import prediction.GhostLocation;
+import prediction.GhostTracker;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Follows each ghost with a fixed number of particles instead of a probability per node. A particle is a node,
+ * the move the ghost made to get there and how long it stays edible, kept in primitive arrays.
+ *
+ * update moves every particle a step along one of the moves GhostPredictionsFast would spread probability over,
+ * picked at random, and edible ghosts only every other step. observeNotPresent drops the particles that would
+ * have been seen and refills the set from the others by systematic resampling, and a determinisation is one
+ * particle per ghost picked at random. So the cost follows the number of particles rather than the maze or how
+ * far a belief has spread, and so does the accuracy.
+ *
+ * Like GhostPredictionsFast, a ghost that has never been spotted has no belief after the first update.
+ */
+public class ParticleGhostTracker implements GhostTracker {
+    private static final int numGhosts = GHOST.values().length;
+    private static final byte NEUTRAL = (byte) MOVE.NEUTRAL.ordinal();
+    // For callers that don't bring their own generator
+    private static final ThreadLocal<SplittableRandom> RANDOMS = ThreadLocal.withInitial(SplittableRandom::new);
+
+    private final Maze maze;
+    private final CompiledMaze graph;
+    private final int mazeSize;
+    private final int particles; // Per ghost
+    private final SplittableRandom random; // Moves and resamples; searching threads bring their own to sample with
+    // Particle k of ghost g is at [g * particles + k]
+    private final int[] nodes;
+    private final byte[] moves;
+    private final int[] edibleTimes;
+    private final int[] counts; // Per ghost, every particle or none if there is no belief
+    private final boolean[] beenSpotted;
+    // Scratch for resampling
+    private final int[] survivors;
+    private final int[] survivorNodes;
+    private final byte[] survivorMoves;
+    private final int[] survivorEdibleTimes;
+    private final int[] onNode; // Scratch for listing locations, so those calls must not overlap
+    private int[] histogram; // Particles per [ghost * mazeSize + node], for calculate; null once out of date
+
+    public ParticleGhostTracker(Maze maze, int particles, SplittableRandom random) {
+        this.maze = maze;
+        graph = CompiledMaze.forMaze(maze);
+        // The same nodes as GhostPredictionsFast, which leaves out the last one
+        mazeSize = maze.graph.length - 1;
+        this.particles = particles;
+        this.random = random;
+        nodes = new int[numGhosts * particles];
+        moves = new byte[numGhosts * particles];
+        edibleTimes = new int[numGhosts * particles];
+        counts = new int[numGhosts];
+        beenSpotted = new boolean[numGhosts];
+        survivors = new int[particles];
+        survivorNodes = new int[particles];
+        survivorMoves = new byte[particles];
+        survivorEdibleTimes = new int[particles];
+        onNode = new int[mazeSize];
+    }
+
+    public int getParticles() {
+        return particles;
+    }
+
+    public void preallocate() {
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = random.nextInt(mazeSize);
+            moves[i] = NEUTRAL;
+            edibleTimes[i] = 0;
+        }
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            counts[ghost] = particles;
+        }
+        histogram = null;
+    }
+
+    public void observe(GHOST ghost, int index, MOVE lastMoveMade) {
+        observe(ghost, index, lastMoveMade, 0);
+    }
+
+    public void observe(GHOST ghost, int index, MOVE lastMoveMade, int edibleTime) {
+        int start = ghost.ordinal() * particles;
+        for (int i = start; i < start + particles; i++) {
+            nodes[i] = index;
+            moves[i] = (byte) lastMoveMade.ordinal();
+            edibleTimes[i] = Math.max(0, edibleTime);
+        }
+        counts[ghost.ordinal()] = particles;
+        beenSpotted[ghost.ordinal()] = true;
+        histogram = null;
+    }
+
+    public void observeNotPresent(GHOST ghost, int index) {
+        observeNotPresent(ghost.ordinal(), null, index);
+    }
+
+    public void observeNotPresent(GHOST ghost, long[] visible) {
+        observeNotPresent(ghost.ordinal(), visible, -1);
+    }
+
+    // The ghost is on none of the nodes in visible, or not on seen if there is no visible
+    private void observeNotPresent(int ghost, long[] visible, int seen) {
+        if (counts[ghost] == 0) {
+            return;
+        }
+        int start = ghost * particles;
+        int size = 0;
+        for (int k = 0; k < particles; k++) {
+            if (hidden(nodes[start + k], visible, seen)) {
+                survivors[size++] = k;
+            }
+        }
+        if (size == particles) {
+            return;
+        }
+        histogram = null;
+        if (size == 0) {
+            // Every particle was wrong, so start again from anywhere out of sight
+            for (int i = start; i < start + particles; i++) {
+                int node = random.nextInt(mazeSize);
+                for (int tries = 0; tries < mazeSize && !hidden(node, visible, seen); tries++) {
+                    node = random.nextInt(mazeSize);
+                }
+                nodes[i] = node;
+                moves[i] = NEUTRAL;
+                edibleTimes[i] = 0;
+            }
+            return;
+        }
+        for (int s = 0; s < size; s++) {
+            survivorNodes[s] = nodes[start + survivors[s]];
+            survivorMoves[s] = moves[start + survivors[s]];
+            survivorEdibleTimes[s] = edibleTimes[start + survivors[s]];
+        }
+        // Systematic resampling: one random offset, then evenly spaced picks, so each survivor is copied
+        // particles / size times give or take one
+        double offset = random.nextDouble();
+        for (int k = 0; k < particles; k++) {
+            int s = (int) ((offset + k) * size / particles);
+            nodes[start + k] = survivorNodes[s];
+            moves[start + k] = survivorMoves[s];
+            edibleTimes[start + k] = survivorEdibleTimes[s];
+        }
+    }
+
+    private static boolean hidden(int node, long[] visible, int seen) {
+        return (visible == null) ? node != seen : !VisibilityCache.contains(visible, node);
+    }
+
+    public void update() {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (!beenSpotted[ghost]) {
+                counts[ghost] = 0;
+                continue;
+            }
+            int start = ghost * particles;
+            for (int i = start; i < start + counts[ghost]; i++) {
+                if (edibleTimes[i] > 0 && (--edibleTimes[i] & 1) == 1) {
+                    continue;
+                }
+                int count = graph.getMoveCount(nodes[i], moves[i]);
+                if (count == 0) {
+                    continue;
+                }
+                int move = graph.getMove(nodes[i], moves[i], (count == 1) ? 0 : random.nextInt(count));
+                nodes[i] = graph.getNeighbour(nodes[i], move);
+                moves[i] = (byte) move;
+            }
+        }
+        histogram = null;
+    }
+
+    public double calculate(int index) {
+        if (index >= mazeSize) return 0;
+        int[] histogram = this.histogram;
+        if (histogram == null) {
+            histogram = new int[numGhosts * mazeSize];
+            for (int ghost = 0; ghost < numGhosts; ghost++) {
+                int start = ghost * particles;
+                for (int i = start; i < start + counts[ghost]; i++) {
+                    histogram[ghost * mazeSize + nodes[i]]++;
+                }
+            }
+            this.histogram = histogram;
+        }
+        double sum = 1.0d;
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (counts[ghost] > 0) {
+                sum *= 1 - histogram[ghost * mazeSize + index] / (double) counts[ghost];
+            }
+        }
+        return 1 - sum;
+    }
+
+    public EnumMap<GHOST, GhostLocation> sampleLocations() {
+        return sampleLocations(RANDOMS.get());
+    }
+
+    // A particle per ghost, with a weight of one over the particles
+    public EnumMap<GHOST, GhostLocation> sampleLocations(SplittableRandom random) {
+        EnumMap<GHOST, GhostLocation> results = new EnumMap<>(GHOST.class);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (counts[ghost] == 0) {
+                continue;
+            }
+            int i = ghost * particles + random.nextInt(counts[ghost]);
+            results.put(GHOST.values()[ghost], new GhostLocation(nodes[i], sampleMove(i, random), 1.0d / counts[ghost]));
+        }
+        return results;
+    }
+
+    public void sampleLocations(SplittableRandom random, int[] indices, int[] moves) {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (counts[ghost] == 0) {
+                indices[ghost] = -1;
+                continue;
+            }
+            int i = ghost * particles + random.nextInt(counts[ghost]);
+            indices[ghost] = nodes[i];
+            moves[ghost] = sampleMove(i, random).ordinal();
+        }
+    }
+
+    // As GhostPredictionsFast does, a ghost that hasn't been seen moving could have come in any way
+    private MOVE sampleMove(int i, SplittableRandom random) {
+        if (moves[i] != NEUTRAL) {
+            return MOVE.values()[moves[i]];
+        }
+        MOVE[] possibleMoves = graph.getAllMoves(nodes[i]);
+        return possibleMoves[random.nextInt(possibleMoves.length)].opposite();
+    }
+
+    public ParticleGhostTracker copy() {
+        ParticleGhostTracker other = new ParticleGhostTracker(maze, particles, random.split());
+        copyInto(other);
+        return other;
+    }
+
+    // A tracker of the same shape keeps its own generator
+    public GhostTracker copy(GhostTracker reuse) {
+        if (reuse instanceof ParticleGhostTracker && ((ParticleGhostTracker) reuse).maze == maze
+                && ((ParticleGhostTracker) reuse).particles == particles) {
+            copyInto((ParticleGhostTracker) reuse);
+            return reuse;
+        }
+        return copy();
+    }
+
+    private void copyInto(ParticleGhostTracker other) {
+        System.arraycopy(nodes, 0, other.nodes, 0, nodes.length);
+        System.arraycopy(moves, 0, other.moves, 0, moves.length);
+        System.arraycopy(edibleTimes, 0, other.edibleTimes, 0, edibleTimes.length);
+        System.arraycopy(counts, 0, other.counts, 0, numGhosts);
+        System.arraycopy(beenSpotted, 0, other.beenSpotted, 0, numGhosts);
+        other.histogram = null;
+    }
+
+    public List<GhostLocation> getGhostLocations(GHOST ghost) {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        addGhostLocations(ghost.ordinal(), locations);
+        return locations;
+    }
+
+    public List<GhostLocation> getGhostLocations() {
+        ArrayList<GhostLocation> locations = new ArrayList<>();
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            addGhostLocations(ghost, locations);
+        }
+        return locations;
+    }
+
+    private void addGhostLocations(int ghost, List<GhostLocation> locations) {
+        forEachLocation(GHOST.values()[ghost], (index, move, probability) ->
+                locations.add(new GhostLocation(index, MOVE.values()[move], probability)));
+    }
+
+    // A location per node with particles on it, in the order they are first found, with their share of the
+    // particles and the move of the first
+    public void forEachLocation(GHOST ghost, LocationVisitor visitor) {
+        int start = ghost.ordinal() * particles;
+        int count = counts[ghost.ordinal()];
+        for (int i = start; i < start + count; i++) {
+            onNode[nodes[i]]++;
+        }
+        for (int i = start; i < start + count; i++) {
+            if (onNode[nodes[i]] > 0) {
+                visitor.visit(nodes[i], moves[i], onNode[nodes[i]] / (double) count);
+                onNode[nodes[i]] = 0;
+            }
+        }
+    }
+
+    public int copyLocations(GHOST ghost, int[] indices, int[] moves, double[] probabilities) {
+        int start = ghost.ordinal() * particles;
+        int count = counts[ghost.ordinal()];
+        for (int i = start; i < start + count; i++) {
+            onNode[nodes[i]]++;
+        }
+        int size = 0;
+        for (int i = start; i < start + count; i++) {
+            if (onNode[nodes[i]] > 0) {
+                indices[size] = nodes[i];
+                moves[size] = this.moves[i];
+                probabilities[size++] = onNode[nodes[i]] / (double) count;
+                onNode[nodes[i]] = 0;
+            }
+        }
+        return size;
+    }
+}
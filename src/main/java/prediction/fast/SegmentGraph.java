@@ -0,0 +1,205 @@
+package prediction.fast;
+
+import pacman.game.Constants.MOVE;
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The maze as corridors between junctions.
+ *
+ * A segment is one direction of a corridor: it leaves a junction with an entry move, passes through
+ * nodes where the move is forced, and stops at the next junction, arriving with its exit move.
+ * Every (node, move) inside a corridor is mapped to the segment it lies on and how far along it is,
+ * so a rollout can jump from anywhere to the end of the corridor in one go.
+ * Built once per maze and shared.
+ */
+public final class SegmentGraph {
+    private static final Map<Maze, SegmentGraph> GRAPHS = new ConcurrentHashMap<>();
+    private static final MOVE[] MOVES = MOVE.values();
+
+    private final int[] segmentAt; // [node * 4 + move] -> segment, -1 if that move is a wall
+    private final int[] offsetAt; // [node * 4 + move] -> step of that segment the move leads to
+    private final int[] corridorOf; // [node] -> corridor of a corridor node, -1 for junctions
+
+    // Per segment
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] lengths;
+    private final int[] corridors;
+    private final int[] firstStep; // Into steps/stepMoves
+    private final int[] firstPill; // Into pillSteps/pills, up to firstPill[segment + 1]
+
+    // Per step of every segment
+    private final int[] steps; // Node reached
+    private final byte[] stepMoves; // Move that reached it
+    private final int[] stepPowerPills; // Power pill index on that node, -1 if none
+
+    // Per pill of every segment, in step order
+    private final int[] pillSteps;
+    private final int[] pills;
+
+    private SegmentGraph(Maze maze) {
+        int nodes = maze.graph.length;
+        segmentAt = new int[nodes * 4];
+        offsetAt = new int[nodes * 4];
+        corridorOf = new int[nodes];
+        Arrays.fill(segmentAt, -1);
+        Arrays.fill(corridorOf, -1);
+
+        int segmentCount = 0;
+        for (Node node : maze.graph) {
+            if (isEndpoint(node)) segmentCount += node.neighbourhood.size();
+        }
+        starts = new int[segmentCount];
+        ends = new int[segmentCount];
+        lengths = new int[segmentCount];
+        corridors = new int[segmentCount];
+        firstStep = new int[segmentCount + 1];
+        firstPill = new int[segmentCount + 1];
+        int[] stepBuffer = new int[nodes * 4]; // Each (node, move) is a step of at most one segment, trimmed below
+        byte[] moveBuffer = new byte[stepBuffer.length];
+
+        int segment = 0;
+        int step = 0;
+        int pillCount = 0;
+        for (Node start : maze.graph) {
+            if (!isEndpoint(start)) continue;
+            for (MOVE entry : MOVES) {
+                Integer first = start.neighbourhood.get(entry);
+                if (first == null) continue;
+                starts[segment] = start.nodeIndex;
+                firstStep[segment] = step;
+                int previous = start.nodeIndex;
+                int current = first;
+                MOVE move = entry;
+                while (true) {
+                    segmentAt[previous * 4 + move.ordinal()] = segment;
+                    offsetAt[previous * 4 + move.ordinal()] = step - firstStep[segment];
+                    stepBuffer[step] = current;
+                    moveBuffer[step] = (byte) move.ordinal();
+                    step++;
+                    if (maze.graph[current].pillIndex != -1) pillCount++;
+                    if (isEndpoint(maze.graph[current]) || current == start.nodeIndex) break;
+                    move = maze.graph[current].allPossibleMoves.get(move)[0]; // The only way on
+                    previous = current;
+                    current = maze.graph[current].neighbourhood.get(move);
+                }
+                ends[segment] = current;
+                lengths[segment] = step - firstStep[segment];
+                int inside = stepBuffer[firstStep[segment]];
+                if (!isEndpoint(maze.graph[inside])) {
+                    if (corridorOf[inside] == -1) { // First time through this corridor, in either direction
+                        for (int i = firstStep[segment]; i < step - 1; i++) corridorOf[stepBuffer[i]] = segment;
+                    }
+                    corridors[segment] = corridorOf[inside];
+                } else {
+                    corridors[segment] = -1; // Two junctions next to each other
+                }
+                segment++;
+            }
+        }
+        firstStep[segment] = step;
+        steps = Arrays.copyOf(stepBuffer, step);
+        stepMoves = Arrays.copyOf(moveBuffer, step);
+        stepPowerPills = new int[step];
+        pillSteps = new int[pillCount];
+        pills = new int[pillCount];
+        int pill = 0;
+        for (int s = 0; s < segmentCount; s++) {
+            firstPill[s] = pill;
+            for (int i = firstStep[s]; i < firstStep[s + 1]; i++) {
+                Node node = maze.graph[steps[i]];
+                stepPowerPills[i] = node.powerPillIndex;
+                if (node.pillIndex != -1) {
+                    pillSteps[pill] = i - firstStep[s];
+                    pills[pill++] = node.pillIndex;
+                }
+            }
+        }
+        firstPill[segmentCount] = pill;
+    }
+
+    public static SegmentGraph forMaze(Maze maze) {
+        return GRAPHS.computeIfAbsent(maze, SegmentGraph::new);
+    }
+
+    private static boolean isEndpoint(Node node) {
+        return node.numNeighbouringNodes != 2 && node.numNeighbouringNodes > 0;
+    }
+
+    /**
+     * @return The segment that taking move from index travels along, or -1 if there is a wall
+     */
+    public int getSegment(int index, int move) {
+        return (move < 4) ? segmentAt[index * 4 + move] : -1;
+    }
+
+    /**
+     * @return Which step of its segment taking move from index leads to
+     */
+    public int getOffset(int index, int move) {
+        return offsetAt[index * 4 + move];
+    }
+
+    public int getStart(int segment) {
+        return starts[segment];
+    }
+
+    public int getEnd(int segment) {
+        return ends[segment];
+    }
+
+    public int getLength(int segment) {
+        return lengths[segment];
+    }
+
+    /**
+     * @return An id shared by both directions of a corridor, -1 if the segment has no nodes between its junctions
+     */
+    public int getCorridor(int segment) {
+        return corridors[segment];
+    }
+
+    public int getCorridorOf(int index) {
+        return corridorOf[index];
+    }
+
+    public int getNode(int segment, int step) {
+        return steps[firstStep[segment] + step];
+    }
+
+    public int getMove(int segment, int step) {
+        return stepMoves[firstStep[segment] + step];
+    }
+
+    public int getEntryMove(int segment) {
+        return stepMoves[firstStep[segment]];
+    }
+
+    public int getExitMove(int segment) {
+        return stepMoves[firstStep[segment + 1] - 1];
+    }
+
+    public int getPowerPill(int segment, int step) {
+        return stepPowerPills[firstStep[segment] + step];
+    }
+
+    /**
+     * Pills of a segment are numbered from getFirstPill(segment) to getFirstPill(segment + 1)
+     */
+    public int getFirstPill(int segment) {
+        return firstPill[segment];
+    }
+
+    public int getPillStep(int pill) {
+        return pillSteps[pill];
+    }
+
+    public int getPillIndex(int pill) {
+        return pills[pill];
+    }
+}
@@ -0,0 +1,60 @@
+package prediction.fast;
+
+import pacman.game.Constants.MOVE;
+import pacman.game.Game;
+import pacman.game.internal.Maze;
+
+/**
+ * The nodes Ms. Pac-Man can see from where she stands, as a bitset over the maze's node indices.
+ *
+ * Each (node, last move) is asked of the game once, a node at a time through isNodeObservable, and
+ * remembered for the rest of the maze; the last move is part of the key so that forward-facing sight
+ * works too. What the game shows depends on how it was set up, so each controller keeps its own.
+ * Given a LineOfSight, the sets are taken from it instead and the game is never asked.
+ */
+public final class VisibilityCache {
+    private static final int MOVES = MOVE.values().length;
+
+    private final Maze maze;
+    private final int nodes;
+    private final long[][] visible; // [node * 5 + lastMove], null until she first stands there
+    private final LineOfSight lineOfSight;
+
+    public VisibilityCache(Maze maze) {
+        this(maze, null);
+    }
+
+    public VisibilityCache(Maze maze, LineOfSight lineOfSight) {
+        this.maze = maze;
+        this.lineOfSight = lineOfSight;
+        nodes = maze.graph.length;
+        visible = new long[nodes * MOVES][];
+    }
+
+    public Maze getMaze() {
+        return maze;
+    }
+
+    /**
+     * @return Bit i of word i / 64 is set if node i is observable this tick; shared, so it must not be changed
+     */
+    public long[] getVisible(Game game) {
+        int key = game.getPacmanCurrentNodeIndex() * MOVES + game.getPacmanLastMoveMade().ordinal();
+        long[] bits = visible[key];
+        if (bits == null && lineOfSight != null) {
+            bits = lineOfSight.getVisible(game.getPacmanCurrentNodeIndex());
+            visible[key] = bits;
+        } else if (bits == null) {
+            bits = new long[(nodes + 63) >>> 6];
+            for (int i = 0; i < nodes; i++) {
+                if (game.isNodeObservable(i)) bits[i >>> 6] |= 1L << i;
+            }
+            visible[key] = bits;
+        }
+        return bits;
+    }
+
+    public static boolean contains(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+}
@@ -0,0 +1,33 @@
+package stats;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+
+/**
+ * Writes one line per decision to a CSV file.
+ */
+public class CsvStatsSink implements SearchStatsSink, AutoCloseable {
+    private final PrintWriter writer;
+
+    public CsvStatsSink(String filename) throws FileNotFoundException {
+        writer = new PrintWriter(new File(filename));
+        writer.println("maze,level,time,seed,iterations,iterationsPerSecond,ponderIterations,treeSize,meanDepth,maxDepth,"
+                + "determinisationNanos,selectionNanos,playoutNanos,backPropagationNanos,elapsedNanos,overrunNanos");
+    }
+
+    @Override
+    public void record(SearchStats stats) {
+        writer.println(String.format("%d,%d,%d,%d,%d,%.1f,%d,%d,%.2f,%d,%d,%d,%d,%d,%d,%d",
+                stats.getMaze(), stats.getLevel(), stats.getTime(), stats.getSeed(), stats.getIterations(), stats.getIterationsPerSecond(), stats.getPonderIterations(),
+                stats.getTreeSize(), stats.getMeanDepth(), stats.getMaxDepth(), stats.getDeterminisationNanos(),
+                stats.getSelectionNanos(), stats.getPlayoutNanos(), stats.getBackPropagationNanos(), stats.getElapsedNanos(),
+                stats.getOverrunNanos()));
+    }
+
+    @Override
+    public void close() {
+        writer.flush();
+        writer.close();
+    }
+}
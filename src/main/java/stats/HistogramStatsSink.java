@@ -0,0 +1,85 @@
+package stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps, in memory, a histogram of iterations per second for each (maze, level), along with the
+ * average share of the budget each phase took and how many moves missed their deadline.
+ * Meant to be printed at the end of a tournament run.
+ */
+public class HistogramStatsSink implements SearchStatsSink {
+    private final int bucketWidth; //Iterations per second per bucket
+    private final int buckets; //The last one also counts everything above it
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    public HistogramStatsSink() {
+        this(10000, 50);
+    }
+
+    public HistogramStatsSink(int bucketWidth, int buckets) {
+        this.bucketWidth = bucketWidth;
+        this.buckets = buckets;
+    }
+
+    @Override
+    public synchronized void record(SearchStats stats) {
+        String key = String.format("maze %d level %2d", stats.getMaze(), stats.getLevel());
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry(buckets));
+        double rate = stats.getIterationsPerSecond();
+        entry.counts[(int) Math.min(buckets - 1, rate / bucketWidth)]++;
+        entry.decisions++;
+        entry.rateSum += rate;
+        entry.determinisationNanos += stats.getDeterminisationNanos();
+        entry.selectionNanos += stats.getSelectionNanos();
+        entry.playoutNanos += stats.getPlayoutNanos();
+        entry.backPropagationNanos += stats.getBackPropagationNanos();
+        if (stats.isOverrun()) {
+            entry.overruns++;
+            entry.worstOverrunNanos = Math.max(entry.worstOverrunNanos, stats.getOverrunNanos());
+        }
+    }
+
+    //Count of decisions in each bucket for the given maze and level, null if there were none
+    public synchronized int[] getHistogram(int maze, int level) {
+        Entry entry = entries.get(String.format("maze %d level %2d", maze, level));
+        return entry == null ? null : entry.counts.clone();
+    }
+
+    public synchronized String report() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Entry> pair : entries.entrySet()) {
+            Entry entry = pair.getValue();
+            double total = entry.determinisationNanos + entry.selectionNanos + entry.playoutNanos + entry.backPropagationNanos;
+            builder.append(String.format("%s: %d decisions, %.0f iterations/s, determinisation %.0f%%, selection %.0f%%, playout %.0f%%, back-propagation %.0f%%%n",
+                    pair.getKey(), entry.decisions, entry.rateSum / entry.decisions,
+                    100 * entry.determinisationNanos / total, 100 * entry.selectionNanos / total,
+                    100 * entry.playoutNanos / total, 100 * entry.backPropagationNanos / total));
+            if (entry.overruns > 0) {
+                builder.append(String.format("    %d moves late, worst by %.2f ms%n", entry.overruns, entry.worstOverrunNanos / 1e6));
+            }
+            int last = entry.counts.length - 1;
+            while (last > 0 && entry.counts[last] == 0) last--;
+            for (int i = 0; i <= last; i++) {
+                builder.append(String.format("    %7d: %d%n", i * bucketWidth, entry.counts[i]));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static class Entry {
+        final int[] counts;
+        int decisions;
+        double rateSum;
+        double determinisationNanos;
+        double selectionNanos;
+        double playoutNanos;
+        double backPropagationNanos;
+        int overruns;
+        long worstOverrunNanos;
+
+        Entry(int buckets) {
+            counts = new int[buckets];
+        }
+    }
+}
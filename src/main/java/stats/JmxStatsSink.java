@@ -0,0 +1,118 @@
+package stats;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes the statistics as an MXBean named stats:type=Search,name=(the given name), so a running game
+ * can be watched from jconsole or VisualVM.
+ */
+public class JmxStatsSink implements SearchStatsSink, SearchStatsMXBean {
+    private volatile int decisions;
+    private volatile int lastIterations;
+    private volatile int lastTreeSize;
+    private volatile double lastMeanDepth;
+    private volatile int lastMaxDepth;
+    private double rateSum;
+    private double determinisationNanos;
+    private double selectionNanos;
+    private double playoutNanos;
+    private double backPropagationNanos;
+    private volatile int overruns;
+    private volatile long worstOverrunNanos;
+
+    public JmxStatsSink(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("stats:type=Search,name=" + name));
+        } catch (InstanceAlreadyExistsException e) {
+            System.err.println("A search statistics bean called " + name + " is already registered");
+        } catch (JMException e) {
+            System.err.println("Could not register search statistics: " + e);
+        }
+    }
+
+    @Override
+    public synchronized void record(SearchStats stats) {
+        lastIterations = stats.getIterations();
+        lastTreeSize = stats.getTreeSize();
+        lastMeanDepth = stats.getMeanDepth();
+        lastMaxDepth = stats.getMaxDepth();
+        rateSum += stats.getIterationsPerSecond();
+        determinisationNanos += stats.getDeterminisationNanos();
+        selectionNanos += stats.getSelectionNanos();
+        playoutNanos += stats.getPlayoutNanos();
+        backPropagationNanos += stats.getBackPropagationNanos();
+        if (stats.isOverrun()) {
+            overruns++;
+            worstOverrunNanos = Math.max(worstOverrunNanos, stats.getOverrunNanos());
+        }
+        decisions++;
+    }
+
+    @Override
+    public int getDecisions() {
+        return decisions;
+    }
+
+    @Override
+    public int getLastIterations() {
+        return lastIterations;
+    }
+
+    @Override
+    public int getLastTreeSize() {
+        return lastTreeSize;
+    }
+
+    @Override
+    public double getLastMeanDepth() {
+        return lastMeanDepth;
+    }
+
+    @Override
+    public int getLastMaxDepth() {
+        return lastMaxDepth;
+    }
+
+    @Override
+    public synchronized double getAverageIterationsPerSecond() {
+        return decisions == 0 ? 0 : rateSum / decisions;
+    }
+
+    @Override
+    public synchronized double getDeterminisationShare() {
+        return share(determinisationNanos);
+    }
+
+    @Override
+    public synchronized double getSelectionShare() {
+        return share(selectionNanos);
+    }
+
+    @Override
+    public synchronized double getPlayoutShare() {
+        return share(playoutNanos);
+    }
+
+    @Override
+    public synchronized double getBackPropagationShare() {
+        return share(backPropagationNanos);
+    }
+
+    @Override
+    public int getOverruns() {
+        return overruns;
+    }
+
+    @Override
+    public long getWorstOverrunNanos() {
+        return worstOverrunNanos;
+    }
+
+    private double share(double nanos) {
+        double total = determinisationNanos + selectionNanos + playoutNanos + backPropagationNanos;
+        return total == 0 ? 0 : nanos / total;
+    }
+}
@@ -0,0 +1,170 @@
+package stats;
+
+/**
+ * Where the time of one MCTS decision went.
+ *
+ * Each search thread fills its own and they are added together at the end of the decision. Everything is a
+ * plain counter, so recording costs a few nanoTime calls per iteration. Controllers reuse the same object
+ * every decision; a sink that wants to keep the numbers has to copy them.
+ */
+public final class SearchStats {
+    private int maze;
+    private int level;
+    private int time;
+    private long seed; //Every random number of the decision came from this
+
+    private int iterations;
+    private long depthSum;
+    private int maxDepth;
+    private int treeSize;
+    private int ponderIterations; //Run between the previous decision and this one
+
+    private long determinisationNanos;
+    private long selectionNanos; //Selection and expansion
+    private long playoutNanos;
+    private long backPropagationNanos;
+    private long elapsedNanos; //Wall clock time of the whole search, the phases are summed over threads
+    private long overrunNanos; //How long after its deadline the move was returned, negative if it was in time
+
+    public void reset() {
+        iterations = 0;
+        depthSum = 0;
+        maxDepth = 0;
+        treeSize = 0;
+        ponderIterations = 0;
+        determinisationNanos = 0;
+        selectionNanos = 0;
+        playoutNanos = 0;
+        backPropagationNanos = 0;
+        elapsedNanos = 0;
+        overrunNanos = 0;
+    }
+
+    public void setDecision(int maze, int level, int time) {
+        this.maze = maze;
+        this.level = level;
+        this.time = time;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    //Depth of the tree node the iteration's playout started from
+    public void addIteration(int depth) {
+        iterations++;
+        depthSum += depth;
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
+    public void addDeterminisation(long nanos) {
+        determinisationNanos += nanos;
+    }
+
+    public void addSelection(long nanos) {
+        selectionNanos += nanos;
+    }
+
+    public void addPlayout(long nanos) {
+        playoutNanos += nanos;
+    }
+
+    public void addBackPropagation(long nanos) {
+        backPropagationNanos += nanos;
+    }
+
+    //Adds the counters of another thread's search of the same decision
+    public void add(SearchStats other) {
+        iterations += other.iterations;
+        depthSum += other.depthSum;
+        maxDepth = Math.max(maxDepth, other.maxDepth);
+        determinisationNanos += other.determinisationNanos;
+        selectionNanos += other.selectionNanos;
+        playoutNanos += other.playoutNanos;
+        backPropagationNanos += other.backPropagationNanos;
+    }
+
+    public void setTreeSize(int treeSize) {
+        this.treeSize = treeSize;
+    }
+
+    public void setPonderIterations(int ponderIterations) {
+        this.ponderIterations = ponderIterations;
+    }
+
+    public void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public void setOverrunNanos(long overrunNanos) {
+        this.overrunNanos = overrunNanos;
+    }
+
+    public int getMaze() {
+        return maze;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getTime() {
+        return time;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public double getMeanDepth() {
+        return iterations == 0 ? 0 : (double) depthSum / iterations;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getTreeSize() {
+        return treeSize;
+    }
+
+    public int getPonderIterations() {
+        return ponderIterations;
+    }
+
+    public long getDeterminisationNanos() {
+        return determinisationNanos;
+    }
+
+    public long getSelectionNanos() {
+        return selectionNanos;
+    }
+
+    public long getPlayoutNanos() {
+        return playoutNanos;
+    }
+
+    public long getBackPropagationNanos() {
+        return backPropagationNanos;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getOverrunNanos() {
+        return overrunNanos;
+    }
+
+    public boolean isOverrun() {
+        return overrunNanos > 0;
+    }
+
+    public double getIterationsPerSecond() {
+        return elapsedNanos == 0 ? 0 : iterations * 1e9 / elapsedNanos;
+    }
+}
@@ -0,0 +1,30 @@
+package stats;
+
+/**
+ * What JmxStatsSink shows in a JMX console: the last decision, and averages since the sink was made.
+ */
+public interface SearchStatsMXBean {
+    int getDecisions();
+
+    int getLastIterations();
+
+    int getLastTreeSize();
+
+    double getLastMeanDepth();
+
+    int getLastMaxDepth();
+
+    double getAverageIterationsPerSecond();
+
+    double getDeterminisationShare();
+
+    double getSelectionShare();
+
+    double getPlayoutShare();
+
+    double getBackPropagationShare();
+
+    int getOverruns();
+
+    long getWorstOverrunNanos();
+}
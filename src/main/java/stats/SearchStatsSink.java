@@ -0,0 +1,11 @@
+package stats;
+
+/**
+ * Receives the statistics of every decision a controller makes.
+ *
+ * Called on the controller's thread inside getMove, so it should be quick. The same SearchStats object is
+ * passed every time.
+ */
+public interface SearchStatsSink {
+    void record(SearchStats stats);
+}
@@ -0,0 +1,96 @@
+package entrants.pacman.mcmaximiano;
+
+import org.junit.Before;
+import org.junit.Test;
+import pacman.game.Game;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The search loop reuses the buffers of its SearchContext and the slots of its arena, so once warmed up an
+ * iteration should allocate nothing. Measured with the JVM's per-thread allocation counter, which only sees
+ * what this thread allocates, so JIT and GC threads don't disturb it.
+ */
+public class SearchTreeAllocationTest {
+    private static final int WARMUP = 20000;
+    private static final int MEASURED = 10000;
+
+    private final com.sun.management.ThreadMXBean threads = threads();
+
+    private Game game;
+    private MyPacMan pacman;
+    private SearchContext context;
+    private GameFast determinisation;
+    private GameFast copy;
+
+    private static com.sun.management.ThreadMXBean threads() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    @Before
+    public void start() {
+        assumeTrue("Per-thread allocation counting is not supported", threads != null);
+        game = new Game(42);
+        pacman = new MyPacMan().setSeed(42);
+        pacman.getMove(game, System.currentTimeMillis() + 40); //Builds the beliefs and the base state
+        context = new SearchContext();
+        context.prepare(game.getCurrentMaze(), 0);
+        context.seed(42);
+        determinisation = new GameFast(game.getCurrentMaze());
+        pacman.obtainDeterminisedState(game, determinisation, context);
+        copy = new GameFast(game.getCurrentMaze());
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void playoutsAllocateNothing() {
+        SearchTree tree = new SearchTree(pacman, 1 << 10, null, false);
+        tree.reset(game);
+        for (int i = 0; i < WARMUP; i++) {
+            copy.resetFrom(determinisation);
+            tree.playout(0, copy, context);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED; i++) {
+            copy.resetFrom(determinisation);
+            tree.playout(0, copy, context);
+        }
+        long allocated = allocatedBytes() - before;
+        //Less than a byte per playout leaves room for the counter itself, not for anything a playout allocates
+        assertTrue(allocated + " bytes allocated by " + MEASURED + " playouts", allocated < MEASURED);
+    }
+
+    //Selection, expansion into the arena, a playout with a fresh determinisation and back-propagation.
+    //The arena fills up during the warm up, after which expansion stops as it would in a long search
+    @Test
+    public void iterationsAllocateNothing() {
+        SearchTree tree = new SearchTree(pacman, 1 << 10, null, false);
+        tree.reset(game);
+        for (int i = 0; i < WARMUP; i++) {
+            iterate(tree);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED; i++) {
+            iterate(tree);
+        }
+        long allocated = allocatedBytes() - before;
+        assertTrue(allocated + " bytes allocated by " + MEASURED + " iterations", allocated < MEASURED);
+    }
+
+    private void iterate(SearchTree tree) {
+        pacman.obtainDeterminisedState(game, copy, context);
+        int node = tree.select_expand(copy, context);
+        double score = tree.playout(node, copy, context);
+        tree.backPropagate(node, score, context);
+    }
+}
@@ -0,0 +1,48 @@
+package entrants.pacman.mcmaximiano;
+
+import org.junit.Test;
+import pacman.game.Game;
+
+import static org.junit.Assert.assertTrue;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Selection with a transposition table takes its visit counts from the table, which other paths and other
+ * workers keep adding to. However the counts of a state and the moves out of it disagree, a child must still
+ * be selected.
+ */
+public class TranspositionSelectionTest {
+
+    @Test
+    public void selectsAChildWhenTheTableCountsMoreVisitsForTheChildrenThanTheParent() {
+        Game game = new Game(42);
+        MyPacMan pacman = new MyPacMan().setSeed(42);
+        pacman.getMove(game, System.currentTimeMillis() + 40); //Builds the beliefs and the base state
+        SearchContext context = new SearchContext();
+        context.prepare(game.getCurrentMaze(), 0);
+        context.seed(42);
+        GameFast determinisation = new GameFast(game.getCurrentMaze());
+        pacman.obtainDeterminisedState(game, determinisation, context);
+        GameFast copy = new GameFast(game.getCurrentMaze());
+
+        TranspositionTable table = new TranspositionTable(1 << 12);
+        SearchTree tree = new SearchTree(pacman, 1 << 10, table, false);
+        tree.reset(game);
+        for (int i = 0; i < 20; i++) { //Expands every child of the root, and a few below them
+            copy.resetFrom(determinisation);
+            int node = tree.select_expand(copy, context);
+            tree.backPropagate(node, tree.playout(node, copy, context), context);
+        }
+
+        //The root state has been counted 20 times, each move out of it far more often
+        long state = determinisation.hash();
+        for (MOVE move : MOVE.values()) {
+            for (int i = 0; i < 1000; i++) {
+                table.update(TranspositionTable.edge(state, move.ordinal()), 1000);
+            }
+        }
+        copy.resetFrom(determinisation);
+        int node = tree.select_expand(copy, context);
+        assertTrue("select_expand returned " + node, node > 0);
+    }
+}
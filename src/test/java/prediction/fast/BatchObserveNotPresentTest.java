@@ -0,0 +1,139 @@
+package prediction.fast;
+
+import org.junit.Test;
+import pacman.game.Game;
+import pacman.game.internal.Maze;
+import prediction.GhostLocation;
+
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * observeNotPresent with a bitset of visible nodes renormalises once, where the single-node call renormalises
+ * after every node. Both must leave the same belief, up to rounding.
+ */
+public class BatchObserveNotPresentTest {
+    private static final int RUNS = 20;
+    private static final int STEPS = 200;
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void matchesOneCallPerNode() {
+        for (int mazeIndex = 0; mazeIndex < 4; mazeIndex++) {
+            Maze maze = new Game(mazeIndex, mazeIndex, null).getCurrentMaze();
+            int mazeSize = maze.graph.length - 1;
+            Random random = new Random(mazeIndex);
+            for (int run = 0; run < RUNS; run++) {
+                GhostPredictionsFast predictions = new GhostPredictionsFast(maze);
+                ReferenceGhostPredictions reference = new ReferenceGhostPredictions(maze);
+                predictions.preallocate();
+                reference.preallocate();
+                for (int step = 0; step < STEPS; step++) {
+                    SparseGhostPredictionsTest.randomStep(random, predictions, reference);
+                    GHOST ghost = GHOST.values()[random.nextInt(GHOST.values().length)];
+                    // A run of consecutive nodes, like a corridor in sight, or scattered nodes
+                    long[] visible = random.nextBoolean() ? nodeRange(random, maze.graph.length)
+                            : randomNodes(random, maze.graph.length);
+                    if (visibleProbability(predictions, ghost, visible) > 0.99) {
+                        continue; // Nowhere left for the ghost, so there is nothing to renormalise
+                    }
+                    GhostPredictionsFast batch = predictions.copy();
+                    GhostPredictionsFast single = predictions.copy();
+                    batch.observeNotPresent(ghost, visible);
+                    for (int index = 0; index < mazeSize; index++) {
+                        if ((visible[index >>> 6] & (1L << index)) != 0) {
+                            single.observeNotPresent(ghost, index);
+                        }
+                    }
+                    assertSameBeliefs(single, batch);
+                }
+            }
+        }
+    }
+
+    // Seeing every node a belief covers leaves no belief, rather than NaNs from dividing by nothing left. Both
+    // from the uniform belief, which is scanned in full, and from one spread over a few nodes
+    @Test
+    public void leavesNoBeliefWhenEverywhereItCouldBeIsSeen() {
+        for (int mazeIndex = 0; mazeIndex < 4; mazeIndex++) {
+            Maze maze = new Game(mazeIndex, mazeIndex, null).getCurrentMaze();
+            int mazeSize = maze.graph.length - 1;
+            GhostPredictionsFast predictions = new GhostPredictionsFast(maze);
+            predictions.preallocate();
+            assertSeeingItAllLeavesNothing(predictions, GHOST.BLINKY, mazeSize);
+            predictions.observe(GHOST.PINKY, mazeSize / 2, MOVE.NEUTRAL);
+            for (int step = 0; step < 5; step++) {
+                predictions.update();
+            }
+            assertSeeingItAllLeavesNothing(predictions, GHOST.PINKY, mazeSize);
+        }
+    }
+
+    private static void assertSeeingItAllLeavesNothing(GhostPredictionsFast predictions, GHOST ghost, int mazeSize) {
+        long[] visible = new long[(mazeSize + 64) >>> 6];
+        for (GhostLocation location : predictions.getGhostLocations(ghost)) {
+            int index = location.getIndex();
+            visible[index >>> 6] |= 1L << index;
+        }
+        GhostPredictionsFast batch = predictions.copy();
+        GhostPredictionsFast single = predictions.copy();
+        batch.observeNotPresent(ghost, visible);
+        for (GhostLocation location : predictions.getGhostLocations(ghost)) {
+            single.observeNotPresent(ghost, location.getIndex());
+        }
+        for (GhostPredictionsFast seen : new GhostPredictionsFast[]{batch, single}) {
+            assertTrue(seen.getGhostLocations(ghost).isEmpty());
+            assertFalse(seen.sampleLocations(new SplittableRandom(0)).containsKey(ghost));
+            for (int index = 0; index < mazeSize; index++) {
+                assertTrue(Double.isFinite(seen.calculate(index)));
+            }
+        }
+    }
+
+    private static long[] nodeRange(Random random, int nodes) {
+        long[] visible = new long[(nodes + 63) >>> 6];
+        int from = random.nextInt(nodes);
+        int to = Math.min(nodes, from + 1 + random.nextInt(40));
+        for (int i = from; i < to; i++) {
+            visible[i >>> 6] |= 1L << i;
+        }
+        return visible;
+    }
+
+    private static long[] randomNodes(Random random, int nodes) {
+        long[] visible = new long[(nodes + 63) >>> 6];
+        for (int i = 0; i < nodes; i++) {
+            if (random.nextInt(8) == 0) visible[i >>> 6] |= 1L << i;
+        }
+        return visible;
+    }
+
+    private static double visibleProbability(GhostPredictionsFast predictions, GHOST ghost, long[] visible) {
+        double sum = 0;
+        for (GhostLocation location : predictions.getGhostLocations(ghost)) {
+            int index = location.getIndex();
+            if ((visible[index >>> 6] & (1L << index)) != 0) sum += location.getProbability();
+        }
+        return sum;
+    }
+
+    private static void assertSameBeliefs(GhostPredictionsFast expected, GhostPredictionsFast actual) {
+        for (GHOST ghost : GHOST.values()) {
+            List<GhostLocation> expectedLocations = expected.getGhostLocations(ghost);
+            List<GhostLocation> locations = actual.getGhostLocations(ghost);
+            assertEquals(expectedLocations.size(), locations.size());
+            for (int k = 0; k < locations.size(); k++) {
+                assertEquals(expectedLocations.get(k).getIndex(), locations.get(k).getIndex());
+                assertEquals(expectedLocations.get(k).getLastMoveMade(), locations.get(k).getLastMoveMade());
+                assertEquals(expectedLocations.get(k).getProbability(), locations.get(k).getProbability(), TOLERANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package prediction.fast;
+
+import org.junit.Test;
+import pacman.game.Game;
+import pacman.game.internal.Maze;
+import prediction.GhostLocation;
+
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * Sampling binary searches a cached table of running totals instead of adding the probabilities up on every
+ * call. For the same random numbers it must land on the node the linear scan did, so seeded runs replay.
+ */
+public class GhostSamplerTest {
+    private static final int RUNS = 20;
+    private static final int STEPS = 200;
+    private static final int DRAWS = 20; // Per step, so most come from a sampler built by an earlier draw
+
+    @Test
+    public void drawsTheNodesTheLinearScanDid() {
+        for (int mazeIndex = 0; mazeIndex < 4; mazeIndex++) {
+            Maze maze = new Game(mazeIndex, mazeIndex, null).getCurrentMaze();
+            Random random = new Random(mazeIndex);
+            for (int run = 0; run < RUNS; run++) {
+                GhostPredictionsFast predictions = new GhostPredictionsFast(maze);
+                ReferenceGhostPredictions reference = new ReferenceGhostPredictions(maze);
+                predictions.preallocate();
+                reference.preallocate();
+                for (int step = 0; step < STEPS; step++) {
+                    SparseGhostPredictionsTest.randomStep(random, predictions, reference);
+                    for (int draw = 0; draw < DRAWS; draw++) {
+                        long seed = random.nextLong();
+                        assertSameDraws(reference.sampleLocations(new SplittableRandom(seed)),
+                                predictions.sampleLocations(new SplittableRandom(seed)));
+                    }
+                }
+            }
+        }
+    }
+
+    // A ghost that was never spotted has no belief after an update: it is left out of the draw, which still
+    // takes its random number, so the ghosts after it get the same numbers as before
+    @Test
+    public void leavesOutGhostsWithNoBelief() {
+        Maze maze = new Game(0, 0, null).getCurrentMaze();
+        GhostPredictionsFast predictions = new GhostPredictionsFast(maze);
+        ReferenceGhostPredictions reference = new ReferenceGhostPredictions(maze);
+        predictions.preallocate();
+        reference.preallocate();
+        predictions.observe(GHOST.PINKY, 0, MOVE.NEUTRAL);
+        reference.observe(GHOST.PINKY, 0, MOVE.NEUTRAL);
+        predictions.update();
+        reference.update();
+        assertTrue(predictions.getGhostLocations(GHOST.BLINKY).isEmpty());
+        for (long seed = 0; seed < 100; seed++) {
+            EnumMap<GHOST, GhostLocation> locations = predictions.sampleLocations(new SplittableRandom(seed));
+            assertEquals(1, locations.size());
+            assertTrue(locations.containsKey(GHOST.PINKY));
+            assertSameDraws(reference.sampleLocations(new SplittableRandom(seed)), locations);
+        }
+    }
+
+    private static void assertSameDraws(EnumMap<GHOST, GhostLocation> expected, EnumMap<GHOST, GhostLocation> locations) {
+        assertEquals(expected.keySet(), locations.keySet());
+        for (GHOST ghost : expected.keySet()) {
+            assertEquals(expected.get(ghost).getIndex(), locations.get(ghost).getIndex());
+            assertEquals(expected.get(ghost).getLastMoveMade(), locations.get(ghost).getLastMoveMade());
+            assertEquals(expected.get(ghost).getProbability(), locations.get(ghost).getProbability(), 0);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package prediction.fast;
+
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+import prediction.GhostLocation;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.SplittableRandom;
+
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * GhostPredictionsFast as it was before it kept lists of the nodes each ghost may be on: every update,
+ * renormalisation and sum scans the whole maze. The tests hold the current class to the same numbers.
+ */
+final class ReferenceGhostPredictions {
+    private static final int numGhosts = GHOST.values().length;
+    private static final double THRESHOLD = 1 / 256.0d;
+
+    private final Maze maze;
+    private final int mazeSize;
+    // First mazeSize indices are for ghost ordinal 0 etc
+    private final double[] probabilities;
+    private final double[] backProbabilities;
+    private final MOVE[] moves;
+    private final MOVE[] backMoves;
+    private final boolean[] beenSpotted = new boolean[numGhosts];
+
+    ReferenceGhostPredictions(Maze maze) {
+        this.maze = maze;
+        mazeSize = maze.graph.length - 1;
+        probabilities = new double[mazeSize * numGhosts];
+        backProbabilities = new double[mazeSize * numGhosts];
+        moves = new MOVE[mazeSize * numGhosts];
+        backMoves = new MOVE[mazeSize * numGhosts];
+    }
+
+    void preallocate() {
+        double probability = 1 / ((probabilities.length * 1.0d) / numGhosts);
+        Arrays.fill(probabilities, probability);
+        Arrays.fill(moves, MOVE.NEUTRAL);
+    }
+
+    void observe(GHOST ghost, int index, MOVE lastMoveMade) {
+        int startIndex = ghost.ordinal() * mazeSize;
+        Arrays.fill(probabilities, startIndex, startIndex + mazeSize, 0);
+        Arrays.fill(moves, startIndex, startIndex + mazeSize, null);
+        probabilities[startIndex + index] = 1.0d;
+        moves[startIndex + index] = lastMoveMade;
+        beenSpotted[ghost.ordinal()] = true;
+    }
+
+    void observeNotPresent(GHOST ghost, int index) {
+        int startIndex = ghost.ordinal() * mazeSize;
+        double probabilityAdjustment = 1 - probabilities[startIndex + index];
+        probabilities[startIndex + index] = 0;
+        moves[startIndex + index] = null;
+        for (int i = startIndex; i < startIndex + mazeSize; i++) {
+            probabilities[i] /= probabilityAdjustment;
+        }
+    }
+
+    void update() {
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            if (!beenSpotted[ghost]) {
+                continue;
+            }
+            for (int i = mazeSize * ghost; i < mazeSize * (ghost + 1); i++) {
+                if (probabilities[i] > THRESHOLD) {
+                    Node currentNode = maze.graph[i % mazeSize];
+                    double probability = probabilities[i] / (currentNode.numNeighbouringNodes - 1);
+                    MOVE back = moves[i].opposite();
+                    for (MOVE move : MOVE.values()) {
+                        if (move == back || !currentNode.neighbourhood.containsKey(move)) {
+                            continue;
+                        }
+                        int index = (mazeSize * ghost) + currentNode.neighbourhood.get(move);
+                        // If we haven't already written to there or what we wrote was less probable
+                        if (backProbabilities[index] <= probabilities[index]) {
+                            backProbabilities[index] = probability;
+                            backMoves[index] = move;
+                        }
+                    }
+                }
+            }
+        }
+        System.arraycopy(backProbabilities, 0, probabilities, 0, probabilities.length);
+        Arrays.fill(backProbabilities, 0.0d);
+        System.arraycopy(backMoves, 0, moves, 0, moves.length);
+        Arrays.fill(backMoves, null);
+    }
+
+    double calculate(int index) {
+        if (index >= mazeSize) return 0;
+        double sum = 1.0d;
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            sum *= (1 - probabilities[(mazeSize * ghost) + index]);
+        }
+        return 1 - sum;
+    }
+
+    // The linear scan sampleLocations used to make, with the move drawn at random if the ghost hasn't been seen
+    // moving; a ghost with no belief is left out
+    EnumMap<GHOST, GhostLocation> sampleLocations(SplittableRandom random) {
+        EnumMap<GHOST, GhostLocation> results = new EnumMap<>(GHOST.class);
+        for (int ghost = 0; ghost < numGhosts; ghost++) {
+            double x = random.nextDouble();
+            double sum = 0.0d;
+            for (int i = mazeSize * ghost; i < mazeSize * (ghost + 1); i++) {
+                sum += probabilities[i];
+                if (sum >= x) {
+                    MOVE move = moves[i];
+                    if (move == MOVE.NEUTRAL) {
+                        MOVE[] possibleMoves = maze.graph[i % mazeSize].neighbourhood.keySet().toArray(new MOVE[0]);
+                        move = possibleMoves[random.nextInt(possibleMoves.length)].opposite();
+                    }
+                    results.put(GHOST.values()[ghost], new GhostLocation(i % mazeSize, move, probabilities[i]));
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    double getProbability(GHOST ghost, int index) {
+        return probabilities[ghost.ordinal() * mazeSize + index];
+    }
+
+    MOVE getMove(GHOST ghost, int index) {
+        return moves[ghost.ordinal() * mazeSize + index];
+    }
+
+    int getMazeSize() {
+        return mazeSize;
+    }
+}
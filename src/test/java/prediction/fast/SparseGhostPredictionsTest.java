@@ -0,0 +1,136 @@
+package prediction.fast;
+
+import org.junit.Test;
+import pacman.game.Game;
+import pacman.game.internal.Maze;
+import prediction.GhostLocation;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pacman.game.Constants.GHOST;
+import static pacman.game.Constants.MOVE;
+
+/**
+ * GhostPredictionsFast only visits the nodes each ghost may be on, switching to full scans once a belief is
+ * dense. Random runs of observations and updates on every maze must give exactly the numbers the full scan did,
+ * as every sum is still taken in index order.
+ */
+public class SparseGhostPredictionsTest {
+    private static final int RUNS = 20;
+    private static final int STEPS = 200;
+    private static final int UPDATES = 60;
+
+    @Test
+    public void matchesFullScans() {
+        for (int mazeIndex = 0; mazeIndex < 4; mazeIndex++) {
+            Maze maze = new Game(mazeIndex, mazeIndex, null).getCurrentMaze();
+            Random random = new Random(mazeIndex);
+            for (int run = 0; run < RUNS; run++) {
+                GhostPredictionsFast predictions = new GhostPredictionsFast(maze);
+                ReferenceGhostPredictions reference = new ReferenceGhostPredictions(maze);
+                predictions.preallocate();
+                reference.preallocate();
+                assertSameBeliefs(predictions, reference);
+                for (int step = 0; step < STEPS; step++) {
+                    randomStep(random, predictions, reference);
+                    assertSameBeliefs(predictions, reference);
+                }
+            }
+        }
+    }
+
+    // A belief spread thinly over nodes all round the maze reaches more than a quarter of it in an update and
+    // thins out again later, so it goes from full scans to a list of nodes, and on some mazes back again
+    @Test
+    public void crossesTheDenseThreshold() {
+        for (int mazeIndex = 0; mazeIndex < 4; mazeIndex++) {
+            Maze maze = new Game(mazeIndex, mazeIndex, null).getCurrentMaze();
+            boolean crossed = false;
+            for (int nodes : new int[]{250, 200, 150, 100, 50, 25, 12}) {
+                if (crossesDenseThreshold(maze, nodes)) {
+                    crossed = true;
+                    break;
+                }
+            }
+            assertTrue("No belief crossed the dense threshold on maze " + mazeIndex, crossed);
+        }
+    }
+
+    // Leaves BLINKY on about nodes evenly spaced nodes, then updates; true if the number of nodes it may be on
+    // went from one side of a quarter of the maze to the other with some belief on both sides
+    private static boolean crossesDenseThreshold(Maze maze, int nodes) {
+        GhostPredictionsFast predictions = new GhostPredictionsFast(maze);
+        ReferenceGhostPredictions reference = new ReferenceGhostPredictions(maze);
+        int mazeSize = reference.getMazeSize();
+        int spacing = Math.max(1, mazeSize / nodes);
+        // Spotted first, as update leaves a ghost that never was without any belief
+        predictions.observe(GHOST.BLINKY, 0, MOVE.NEUTRAL);
+        reference.observe(GHOST.BLINKY, 0, MOVE.NEUTRAL);
+        predictions.preallocate();
+        reference.preallocate();
+        for (int index = 0; index < mazeSize; index++) {
+            if (index % spacing != 0) {
+                predictions.observeNotPresent(GHOST.BLINKY, index);
+                reference.observeNotPresent(GHOST.BLINKY, index);
+            }
+        }
+        assertSameBeliefs(predictions, reference);
+        boolean crossed = false;
+        int previous = predictions.getGhostLocations(GHOST.BLINKY).size();
+        for (int update = 0; update < UPDATES && previous > 0; update++) {
+            predictions.update();
+            reference.update();
+            assertSameBeliefs(predictions, reference);
+            int count = predictions.getGhostLocations(GHOST.BLINKY).size();
+            if (count > 0 && (previous > mazeSize / 4) != (count > mazeSize / 4)) {
+                crossed = true;
+            }
+            previous = count;
+        }
+        return crossed;
+    }
+
+    // Mostly updates, as while the ghosts are out of sight, with some sightings and some nodes seen empty
+    static void randomStep(Random random, GhostPredictionsFast predictions, ReferenceGhostPredictions reference) {
+        GHOST ghost = GHOST.values()[random.nextInt(GHOST.values().length)];
+        int index = random.nextInt(reference.getMazeSize());
+        double roll = random.nextDouble();
+        if (roll < 0.1) {
+            MOVE move = MOVE.values()[random.nextInt(MOVE.values().length)];
+            predictions.observe(ghost, index, move);
+            reference.observe(ghost, index, move);
+        } else if (roll < 0.4) {
+            // Seeing a ghost's only node empty leaves nothing to renormalise
+            if (reference.getProbability(ghost, index) < 0.99) {
+                predictions.observeNotPresent(ghost, index);
+                reference.observeNotPresent(ghost, index);
+            }
+        } else {
+            predictions.update();
+            reference.update();
+        }
+    }
+
+    private static void assertSameBeliefs(GhostPredictionsFast predictions, ReferenceGhostPredictions reference) {
+        int mazeSize = reference.getMazeSize();
+        for (GHOST ghost : GHOST.values()) {
+            List<GhostLocation> locations = predictions.getGhostLocations(ghost);
+            int k = 0;
+            for (int index = 0; index < mazeSize; index++) {
+                if (reference.getProbability(ghost, index) > 0) {
+                    GhostLocation location = locations.get(k++);
+                    assertEquals(index, location.getIndex());
+                    assertEquals(reference.getMove(ghost, index), location.getLastMoveMade());
+                    assertEquals(reference.getProbability(ghost, index), location.getProbability(), 0);
+                }
+            }
+            assertEquals(k, locations.size());
+        }
+        for (int index = 0; index < mazeSize; index++) {
+            assertEquals(reference.calculate(index), predictions.calculate(index), 0);
+        }
+    }
+}